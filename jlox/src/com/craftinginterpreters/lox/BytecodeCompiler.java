@@ -0,0 +1,643 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.Chunk.*;
+
+// Compiles the parsed (and already resolved and error-checked) syntax tree
+// into chunks for the VM. Local and upvalue bookkeeping follows clox's
+// compiler.c: locals live in stack slots of the enclosing function's frame,
+// with slot zero holding the callee or, in methods, the receiver.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+	private enum FunctionType {
+		FUNCTION,
+		INITIALIZER,
+		METHOD,
+		SCRIPT
+	}
+
+	private static class Local {
+		final String name;
+		final int depth;
+		boolean isCaptured = false;
+
+		Local(String name, int depth) {
+			this.name = name;
+			this.depth = depth;
+		}
+	}
+
+	private static class Upvalue {
+		final int index;
+		final boolean isLocal;
+
+		Upvalue(int index, boolean isLocal) {
+			this.index = index;
+			this.isLocal = isLocal;
+		}
+	}
+
+	private static class FunctionState {
+		final FunctionState enclosing;
+		final VM.ObjFunction function;
+		final FunctionType type;
+		final List<Local> locals = new ArrayList<>();
+		final List<Upvalue> upvalues = new ArrayList<>();
+		final Map<String, Integer> globalNames = new HashMap<>();
+		int scopeDepth = 0;
+
+		FunctionState(FunctionState enclosing, VM.ObjFunction function, FunctionType type) {
+			this.enclosing = enclosing;
+			this.function = function;
+			this.type = type;
+
+			String slotZero = type == FunctionType.FUNCTION || type == FunctionType.SCRIPT ? "" : "this";
+			locals.add(new Local(slotZero, 0));
+		}
+	}
+
+	private static class ClassState {
+		final ClassState enclosing;
+		final boolean hasSuperclass;
+
+		ClassState(ClassState enclosing, boolean hasSuperclass) {
+			this.enclosing = enclosing;
+			this.hasSuperclass = hasSuperclass;
+		}
+	}
+
+	private static class CompileError extends RuntimeException {}
+
+	private final Environment globals;
+	private FunctionState current = null;
+	private ClassState currentClass = null;
+	private int line = 1;
+
+	BytecodeCompiler(Environment globals) {
+		this.globals = globals;
+	}
+
+	// Returns null if the program exceeds one of the VM's encoding limits.
+	VM.ObjFunction compile(List<Stmt> statements) {
+		current = new FunctionState(null, new VM.ObjFunction(null), FunctionType.SCRIPT);
+
+		try {
+			for (Stmt statement : statements) {
+				compile(statement);
+			}
+			emitReturn();
+		} catch (CompileError error) {
+			return null;
+		}
+
+		return current.function;
+	}
+
+	private void compile(Stmt stmt) {
+		stmt.accept(this);
+	}
+
+	private void compile(Expr expr) {
+		expr.accept(this);
+	}
+
+	@Override
+	public Void visitExpressionStmt(Stmt.Expression stmt) {
+		compile(stmt.expression);
+		emit(OP_POP);
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Stmt.Print stmt) {
+		compile(stmt.expression);
+		emit(OP_PRINT);
+		return null;
+	}
+
+	@Override
+	public Void visitVarStmt(Stmt.Var stmt) {
+		line = stmt.name.line;
+		if (stmt.initializer != null) {
+			compile(stmt.initializer);
+		} else {
+			emit(OP_NIL);
+		}
+
+		defineVariable(stmt.name);
+		return null;
+	}
+
+	@Override
+	public Void visitBlockStmt(Stmt.Block stmt) {
+		beginScope();
+		for (Stmt statement : stmt.statements) {
+			compile(statement);
+		}
+		endScope();
+		return null;
+	}
+
+	@Override
+	public Void visitIfStmt(Stmt.If stmt) {
+		compile(stmt.condition);
+
+		int thenJump = emitJump(OP_JUMP_IF_FALSE);
+		emit(OP_POP);
+		compile(stmt.thenBranch);
+
+		int elseJump = emitJump(OP_JUMP);
+		patchJump(thenJump);
+		emit(OP_POP);
+
+		if (stmt.elseBranch != null) compile(stmt.elseBranch);
+		patchJump(elseJump);
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(Stmt.While stmt) {
+		int loopStart = chunk().count;
+		compile(stmt.condition);
+
+		int exitJump = emitJump(OP_JUMP_IF_FALSE);
+		emit(OP_POP);
+		compile(stmt.body);
+		emitLoop(loopStart);
+
+		patchJump(exitJump);
+		emit(OP_POP);
+		return null;
+	}
+
+	@Override
+	public Void visitReturnStmt(Stmt.Return stmt) {
+		line = stmt.keyword.line;
+		if (stmt.value == null) {
+			emitReturn();
+		} else {
+			if (stmt.isTailCall) {
+				call((Expr.Call)stmt.value, true);
+			} else {
+				compile(stmt.value);
+			}
+			emit(OP_RETURN);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionStmt(Stmt.Function stmt) {
+		line = stmt.name.line;
+
+		// Declared before the body so the function can refer to itself.
+		if (current.scopeDepth > 0) addLocal(stmt.name.lexeme);
+
+		function(stmt, FunctionType.FUNCTION);
+
+		if (current.scopeDepth == 0) {
+			emitGlobal(OP_DEFINE_GLOBAL, stmt.name);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitClassStmt(Stmt.Class stmt) {
+		line = stmt.name.line;
+
+		int nameConstant = constant(stmt.name.lexeme);
+		emitShort(OP_CLASS, nameConstant);
+		defineVariable(stmt.name);
+
+		ClassState classState = new ClassState(currentClass, stmt.superclass != null);
+		currentClass = classState;
+
+		if (stmt.superclass != null) {
+			compile(stmt.superclass);
+
+			beginScope();
+			addLocal("super");
+
+			namedVariable(stmt.name);
+			emit(OP_INHERIT);
+		}
+
+		namedVariable(stmt.name);
+		for (Stmt.Function method : stmt.methods) {
+			line = method.name.line;
+			FunctionType type = method.name.lexeme.equals("init")
+					? FunctionType.INITIALIZER
+					: FunctionType.METHOD;
+			function(method, type);
+			emitShort(OP_METHOD, constant(method.name.lexeme));
+		}
+		emit(OP_POP);
+
+		if (stmt.superclass != null) endScope();
+
+		currentClass = classState.enclosing;
+		return null;
+	}
+
+	private void function(Stmt.Function stmt, FunctionType type) {
+		FunctionState state = new FunctionState(current, new VM.ObjFunction(stmt.name.lexeme), type);
+		state.function.arity = stmt.params.size();
+		current = state;
+
+		beginScope();
+		for (Token param : stmt.params) {
+			addLocal(param.lexeme);
+		}
+		for (Stmt statement : stmt.body) {
+			compile(statement);
+		}
+		emitReturn();
+
+		current = state.enclosing;
+		state.function.upvalueCount = state.upvalues.size();
+
+		emitShort(OP_CLOSURE, constant(state.function));
+		for (Upvalue upvalue : state.upvalues) {
+			emit(upvalue.isLocal ? 1 : 0);
+			emit(upvalue.index);
+		}
+	}
+
+	@Override
+	public Void visitLiteralExpr(Expr.Literal expr) {
+		if (expr.value == null) {
+			emit(OP_NIL);
+		} else if (expr.value.equals(true)) {
+			emit(OP_TRUE);
+		} else if (expr.value.equals(false)) {
+			emit(OP_FALSE);
+		} else {
+			emitShort(OP_CONSTANT, constant(expr.value));
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitGroupingExpr(Expr.Grouping expr) {
+		compile(expr.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitUnaryExpr(Expr.Unary expr) {
+		compile(expr.right);
+		line = expr.operator.line;
+
+		switch (expr.operator.type) {
+			case MINUS: emit(OP_NEGATE); break;
+			case BANG: emit(OP_NOT); break;
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitBinaryExpr(Expr.Binary expr) {
+		compile(expr.left);
+
+		if (expr.operator.type == TokenType.COMMA) {
+			emit(OP_POP);
+			compile(expr.right);
+			return null;
+		}
+
+		compile(expr.right);
+		line = expr.operator.line;
+
+		switch (expr.operator.type) {
+			case BANG_EQUAL: emit(OP_EQUAL); emit(OP_NOT); break;
+			case EQUAL_EQUAL: emit(OP_EQUAL); break;
+			case GREATER: emit(OP_GREATER); break;
+			case GREATER_EQUAL: emit(OP_GREATER_EQUAL); break;
+			case LESS: emit(OP_LESS); break;
+			case LESS_EQUAL: emit(OP_LESS_EQUAL); break;
+			case PLUS: emit(OP_ADD); break;
+			case MINUS: emit(OP_SUBTRACT); break;
+			case STAR: emit(OP_MULTIPLY); break;
+			case SLASH: emit(OP_DIVIDE); break;
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitLogicalExpr(Expr.Logical expr) {
+		compile(expr.left);
+
+		if (expr.operator.type == TokenType.OR) {
+			int elseJump = emitJump(OP_JUMP_IF_FALSE);
+			int endJump = emitJump(OP_JUMP);
+
+			patchJump(elseJump);
+			emit(OP_POP);
+			compile(expr.right);
+			patchJump(endJump);
+		} else {
+			int endJump = emitJump(OP_JUMP_IF_FALSE);
+			emit(OP_POP);
+			compile(expr.right);
+			patchJump(endJump);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitConditionalExpr(Expr.Conditional expr) {
+		compile(expr.condition);
+
+		int elseJump = emitJump(OP_JUMP_IF_FALSE);
+		emit(OP_POP);
+		compile(expr.thenBranch);
+		int endJump = emitJump(OP_JUMP);
+
+		patchJump(elseJump);
+		emit(OP_POP);
+		compile(expr.elseBranch);
+		patchJump(endJump);
+		return null;
+	}
+
+	@Override
+	public Void visitVariableExpr(Expr.Variable expr) {
+		namedVariable(expr.name);
+		return null;
+	}
+
+	@Override
+	public Void visitAssignExpr(Expr.Assign expr) {
+		compile(expr.value);
+		line = expr.name.line;
+
+		int arg = resolveLocal(current, expr.name.lexeme);
+		if (arg != -1) {
+			emit(OP_SET_LOCAL);
+			emit(arg);
+		} else if ((arg = resolveUpvalue(current, expr.name.lexeme)) != -1) {
+			emit(OP_SET_UPVALUE);
+			emit(arg);
+		} else {
+			emitGlobal(OP_SET_GLOBAL, expr.name);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitThisExpr(Expr.This expr) {
+		namedVariable(expr.keyword);
+		return null;
+	}
+
+	@Override
+	public Void visitSuperExpr(Expr.Super expr) {
+		line = expr.keyword.line;
+		namedVariable(syntheticToken("this"));
+		namedVariable(syntheticToken("super"));
+		emitShort(OP_GET_SUPER, constant(expr.method.lexeme));
+		return null;
+	}
+
+	@Override
+	public Void visitCallExpr(Expr.Call expr) {
+		call(expr, false);
+		return null;
+	}
+
+	private void call(Expr.Call expr, boolean isTail) {
+		// Method calls skip creating a bound method, as clox's OP_INVOKE does.
+		// The method is looked up before the arguments are evaluated, the
+		// order the other engines evaluate the callee and arguments in.
+		if (expr.callee instanceof Expr.Get) {
+			Expr.Get get = (Expr.Get)expr.callee;
+			compile(get.object);
+			line = get.name.line;
+			emitShort(OP_GET_METHOD, constant(get.name.lexeme));
+			invoke(expr, isTail);
+			return;
+		}
+
+		if (expr.callee instanceof Expr.Super) {
+			Expr.Super superExpr = (Expr.Super)expr.callee;
+			namedVariable(syntheticToken("this"));
+			namedVariable(syntheticToken("super"));
+			line = superExpr.method.line;
+			emitShort(OP_GET_SUPER_METHOD, constant(superExpr.method.lexeme));
+			invoke(expr, isTail);
+			return;
+		}
+
+		compile(expr.callee);
+		arguments(expr.arguments);
+		line = expr.paren.line;
+		emit(isTail ? OP_TAIL_CALL : OP_CALL);
+		emit(expr.arguments.size());
+	}
+
+	private void invoke(Expr.Call expr, boolean isTail) {
+		arguments(expr.arguments);
+		line = expr.paren.line;
+		emit(isTail ? OP_TAIL_INVOKE : OP_INVOKE);
+		emit(expr.arguments.size());
+	}
+
+	private void arguments(List<Expr> arguments) {
+		for (Expr argument : arguments) {
+			compile(argument);
+		}
+	}
+
+	@Override
+	public Void visitGetExpr(Expr.Get expr) {
+		compile(expr.object);
+		line = expr.name.line;
+		emitShort(OP_GET_PROPERTY, constant(expr.name.lexeme));
+		return null;
+	}
+
+	@Override
+	public Void visitSetExpr(Expr.Set expr) {
+		compile(expr.object);
+		compile(expr.value);
+		line = expr.name.line;
+		emitShort(OP_SET_PROPERTY, constant(expr.name.lexeme));
+		return null;
+	}
+
+	private void namedVariable(Token name) {
+		line = name.line;
+
+		int arg = resolveLocal(current, name.lexeme);
+		if (arg != -1) {
+			emit(OP_GET_LOCAL);
+			emit(arg);
+		} else if ((arg = resolveUpvalue(current, name.lexeme)) != -1) {
+			emit(OP_GET_UPVALUE);
+			emit(arg);
+		} else {
+			emitGlobal(OP_GET_GLOBAL, name);
+		}
+	}
+
+	private Token syntheticToken(String text) {
+		return new Token(TokenType.IDENTIFIER, text, null, line);
+	}
+
+	private void defineVariable(Token name) {
+		if (current.scopeDepth > 0) {
+			// The value already sits in the new local's stack slot.
+			addLocal(name.lexeme);
+			return;
+		}
+
+		emitGlobal(OP_DEFINE_GLOBAL, name);
+	}
+
+	private void addLocal(String name) {
+		if (current.locals.size() == 256) {
+			error("Too many local variables in function.");
+		}
+
+		current.locals.add(new Local(name, current.scopeDepth));
+	}
+
+	private static int resolveLocal(FunctionState state, String name) {
+		for (int i = state.locals.size() - 1; i >= 0; i--) {
+			if (state.locals.get(i).name.equals(name)) return i;
+		}
+
+		return -1;
+	}
+
+	private int resolveUpvalue(FunctionState state, String name) {
+		if (state.enclosing == null) return -1;
+
+		int local = resolveLocal(state.enclosing, name);
+		if (local != -1) {
+			state.enclosing.locals.get(local).isCaptured = true;
+			return addUpvalue(state, local, true);
+		}
+
+		int upvalue = resolveUpvalue(state.enclosing, name);
+		if (upvalue != -1) return addUpvalue(state, upvalue, false);
+
+		return -1;
+	}
+
+	private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+		for (int i = 0; i < state.upvalues.size(); i++) {
+			Upvalue upvalue = state.upvalues.get(i);
+			if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+		}
+
+		if (state.upvalues.size() == 256) {
+			error("Too many closure variables in function.");
+		}
+
+		state.upvalues.add(new Upvalue(index, isLocal));
+		return state.upvalues.size() - 1;
+	}
+
+	private void beginScope() {
+		current.scopeDepth++;
+	}
+
+	private void endScope() {
+		current.scopeDepth--;
+
+		List<Local> locals = current.locals;
+		while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+			emit(locals.get(locals.size() - 1).isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+			locals.remove(locals.size() - 1);
+		}
+	}
+
+	private Chunk chunk() {
+		return current.function.chunk;
+	}
+
+	private void emit(int b) {
+		chunk().write(b, line);
+	}
+
+	private void emitShort(byte op, int operand) {
+		emit(op);
+		emit((operand >> 8) & 0xff);
+		emit(operand & 0xff);
+	}
+
+	private void emitReturn() {
+		if (current.type == FunctionType.INITIALIZER) {
+			emit(OP_GET_LOCAL);
+			emit(0);
+		} else {
+			emit(OP_NIL);
+		}
+
+		emit(OP_RETURN);
+	}
+
+	private int emitJump(byte instruction) {
+		emit(instruction);
+		emit(0xff);
+		emit(0xff);
+		return chunk().count - 2;
+	}
+
+	private void patchJump(int offset) {
+		int jump = chunk().count - offset - 2;
+		if (jump > 0xffff) error("Too much code to jump over.");
+
+		chunk().code[offset] = (byte)((jump >> 8) & 0xff);
+		chunk().code[offset + 1] = (byte)(jump & 0xff);
+	}
+
+	private void emitLoop(int loopStart) {
+		emit(OP_LOOP);
+
+		int offset = chunk().count - loopStart + 2;
+		if (offset > 0xffff) error("Loop body too large.");
+
+		emit((offset >> 8) & 0xff);
+		emit(offset & 0xff);
+	}
+
+	private int constant(Object value) {
+		int index = chunk().addConstant(value);
+		if (index > 0xffff) error("Too many constants in one chunk.");
+		return index;
+	}
+
+	// Globals are referred to by the slot the global Environment numbers
+	// their name with, as the resolver does for the other engines. Reads and
+	// writes also carry the name's Token, stored once per chunk, to report
+	// an undefined global with.
+	private void emitGlobal(byte op, Token name) {
+		int index = globals.intern(name.lexeme);
+		if (index > 0xffff) error("Too many global variables.");
+		emitShort(op, index);
+		if (op == OP_DEFINE_GLOBAL) return;
+
+		int constant = globalConstant(name);
+		emit((constant >> 8) & 0xff);
+		emit(constant & 0xff);
+	}
+
+	private int globalConstant(Token name) {
+		Integer index = current.globalNames.get(name.lexeme);
+		if (index != null) return index;
+
+		index = constant(name);
+		current.globalNames.put(name.lexeme, index);
+		return index;
+	}
+
+	private void error(String message) {
+		Lox.error(line, message);
+		throw new CompileError();
+	}
+}
@@ -0,0 +1,95 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A function's bytecode, in the same shape as clox's chunk.h. Operands that
+// index constants or globals or jump are two bytes (big endian); local slots,
+// upvalue slots and argument counts are one byte.
+class Chunk {
+	static final byte OP_CONSTANT = 0;
+	static final byte OP_NIL = 1;
+	static final byte OP_TRUE = 2;
+	static final byte OP_FALSE = 3;
+	static final byte OP_POP = 4;
+	static final byte OP_GET_LOCAL = 5;
+	static final byte OP_SET_LOCAL = 6;
+	static final byte OP_GET_GLOBAL = 7;
+	static final byte OP_DEFINE_GLOBAL = 8;
+	static final byte OP_SET_GLOBAL = 9;
+	static final byte OP_GET_UPVALUE = 10;
+	static final byte OP_SET_UPVALUE = 11;
+	static final byte OP_GET_PROPERTY = 12;
+	static final byte OP_SET_PROPERTY = 13;
+	static final byte OP_GET_SUPER = 14;
+	// Look up the method a call is about to invoke before its arguments are
+	// evaluated. Both leave the receiver and the method on the stack for
+	// OP_INVOKE; a field holding the callee replaces the receiver and leaves
+	// nil in place of the method.
+	static final byte OP_GET_METHOD = 15;
+	static final byte OP_GET_SUPER_METHOD = 16;
+	static final byte OP_EQUAL = 17;
+	static final byte OP_GREATER = 18;
+	static final byte OP_GREATER_EQUAL = 19;
+	static final byte OP_LESS = 20;
+	static final byte OP_LESS_EQUAL = 21;
+	static final byte OP_ADD = 22;
+	static final byte OP_SUBTRACT = 23;
+	static final byte OP_MULTIPLY = 24;
+	static final byte OP_DIVIDE = 25;
+	static final byte OP_NOT = 26;
+	static final byte OP_NEGATE = 27;
+	static final byte OP_PRINT = 28;
+	static final byte OP_JUMP = 29;
+	static final byte OP_JUMP_IF_FALSE = 30;
+	static final byte OP_LOOP = 31;
+	static final byte OP_CALL = 32;
+	static final byte OP_INVOKE = 33;
+	static final byte OP_CLOSURE = 34;
+	static final byte OP_CLOSE_UPVALUE = 35;
+	static final byte OP_RETURN = 36;
+	static final byte OP_CLASS = 37;
+	static final byte OP_INHERIT = 38;
+	static final byte OP_METHOD = 39;
+	// Calls made by a return statement. When the callee runs in a new frame,
+	// that frame takes the place of the caller's, so tail recursion runs in
+	// constant stack. The OP_RETURN after one returns what a native or a
+	// class without an initializer gave back.
+	static final byte OP_TAIL_CALL = 40;
+	static final byte OP_TAIL_INVOKE = 41;
+
+	byte[] code = new byte[64];
+	int[] lines = new int[64];
+	int count = 0;
+	Object[] constants = new Object[8];
+	int constantCount = 0;
+	private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+	void write(int b, int line) {
+		if (count == code.length) {
+			code = Arrays.copyOf(code, count * 2);
+			lines = Arrays.copyOf(lines, count * 2);
+		}
+
+		code[count] = (byte)b;
+		lines[count] = line;
+		count++;
+	}
+
+	int addConstant(Object value) {
+		// Strings and numbers are shared within a chunk; functions are always new.
+		boolean shareable = value instanceof String || value instanceof Double;
+		if (shareable) {
+			Integer existing = constantIndexes.get(value);
+			if (existing != null) return existing;
+		}
+
+		if (constantCount == constants.length) {
+			constants = Arrays.copyOf(constants, constantCount * 2);
+		}
+		constants[constantCount] = value;
+		if (shareable) constantIndexes.put(value, constantCount);
+		return constantCount++;
+	}
+}
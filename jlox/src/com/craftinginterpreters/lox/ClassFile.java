@@ -0,0 +1,398 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of the JVM class file format for Jit: a single final class
+// with fields and methods whose only attribute is Code. It writes version 49
+// class files, which the verifier checks by type inference, so branches need
+// no StackMapTable frames.
+class ClassFile {
+	static final int ACONST_NULL = 0x01;
+	static final int ICONST_0 = 0x03;
+	static final int DCONST_0 = 0x0e;
+	static final int BIPUSH = 0x10;
+	static final int SIPUSH = 0x11;
+	static final int LDC_W = 0x13;
+	static final int LDC2_W = 0x14;
+	static final int DLOAD = 0x18;
+	static final int ALOAD = 0x19;
+	static final int AALOAD = 0x32;
+	static final int AASTORE = 0x53;
+	static final int DSTORE = 0x39;
+	static final int ASTORE = 0x3a;
+	static final int POP = 0x57;
+	static final int DUP = 0x59;
+	static final int DUP2 = 0x5c;
+	static final int DADD = 0x63;
+	static final int DSUB = 0x67;
+	static final int DMUL = 0x6b;
+	static final int DDIV = 0x6f;
+	static final int DNEG = 0x77;
+	static final int DCMPL = 0x97;
+	static final int DCMPG = 0x98;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int IFLT = 0x9b;
+	static final int IFGE = 0x9c;
+	static final int IFGT = 0x9d;
+	static final int IFLE = 0x9e;
+	static final int GOTO = 0xa7;
+	static final int ARETURN = 0xb0;
+	static final int RETURN = 0xb1;
+	static final int GETSTATIC = 0xb2;
+	static final int GETFIELD = 0xb4;
+	static final int PUTFIELD = 0xb5;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC = 0xb8;
+	static final int INVOKEINTERFACE = 0xb9;
+	static final int NEW = 0xbb;
+	static final int ANEWARRAY = 0xbd;
+	static final int CHECKCAST = 0xc0;
+	static final int INSTANCEOF = 0xc1;
+	static final int WIDE = 0xc4;
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_PRIVATE = 0x0002;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	// Thrown when a method outgrows what the encoding here can express.
+	static class TooLarge extends RuntimeException {
+		TooLarge() {
+			super(null, null, false, false);
+		}
+	}
+
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final Map<String, Integer> poolIndexes = new HashMap<>();
+	private int poolCount = 1;
+
+	private final int thisClass;
+	private final int superClass;
+	private final List<Integer> interfaces = new ArrayList<>();
+	private final List<byte[]> fields = new ArrayList<>();
+	private final List<byte[]> methods = new ArrayList<>();
+
+	ClassFile(String name, String superName, String... interfaceNames) {
+		thisClass = classRef(name);
+		superClass = classRef(superName);
+		for (String interfaceName : interfaceNames) {
+			interfaces.add(classRef(interfaceName));
+		}
+	}
+
+	int utf8(String value) {
+		return entry("U" + value, out -> {
+			out.writeByte(1);
+			out.writeUTF(value);
+		});
+	}
+
+	int integer(int value) {
+		return entry("I" + value, out -> {
+			out.writeByte(3);
+			out.writeInt(value);
+		});
+	}
+
+	int doubleConstant(double value) {
+		return entry("D" + Double.doubleToRawLongBits(value), 2, out -> {
+			out.writeByte(6);
+			out.writeDouble(value);
+		});
+	}
+
+	int classRef(String internalName) {
+		int name = utf8(internalName);
+		return entry("C" + internalName, out -> {
+			out.writeByte(7);
+			out.writeShort(name);
+		});
+	}
+
+	int fieldRef(String owner, String name, String descriptor) {
+		return memberRef(9, owner, name, descriptor);
+	}
+
+	int methodRef(String owner, String name, String descriptor) {
+		return memberRef(10, owner, name, descriptor);
+	}
+
+	int interfaceMethodRef(String owner, String name, String descriptor) {
+		return memberRef(11, owner, name, descriptor);
+	}
+
+	private int memberRef(int tag, String owner, String name, String descriptor) {
+		int ownerIndex = classRef(owner);
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		int nameAndType = entry("N" + name + ":" + descriptor, out -> {
+			out.writeByte(12);
+			out.writeShort(nameIndex);
+			out.writeShort(descriptorIndex);
+		});
+
+		return entry(tag + owner + "." + name + ":" + descriptor, out -> {
+			out.writeByte(tag);
+			out.writeShort(ownerIndex);
+			out.writeShort(nameAndType);
+		});
+	}
+
+	private interface EntryWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private int entry(String key, EntryWriter writer) {
+		return entry(key, 1, writer);
+	}
+
+	// Longs and doubles take up two indexes of the pool.
+	private int entry(String key, int size, EntryWriter writer) {
+		Integer existing = poolIndexes.get(key);
+		if (existing != null) return existing;
+
+		try {
+			writer.write(poolOut);
+		} catch (IOException error) {
+			throw new AssertionError(error);
+		}
+
+		if (poolCount + size > 0xffff) throw new TooLarge();
+		poolIndexes.put(key, poolCount);
+		poolCount += size;
+		return poolCount - size;
+	}
+
+	void field(int access, String name, String descriptor) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(0);
+		} catch (IOException error) {
+			throw new AssertionError(error);
+		}
+		fields.add(bytes.toByteArray());
+	}
+
+	Method method(int access, String name, String descriptor, int parameterSlots) {
+		return new Method(access, name, descriptor, parameterSlots);
+	}
+
+	byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolCount);
+			pool.writeTo(out);
+			out.writeShort(ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(interfaces.size());
+			for (int index : interfaces) out.writeShort(index);
+			out.writeShort(fields.size());
+			for (byte[] field : fields) out.write(field);
+			out.writeShort(methods.size());
+			for (byte[] method : methods) out.write(method);
+			out.writeShort(0);
+		} catch (IOException error) {
+			throw new AssertionError(error);
+		}
+		return bytes.toByteArray();
+	}
+
+	static class Label {
+		private int position = -1;
+		private int stack = -1;
+		private final List<Integer> branches = new ArrayList<>();
+	}
+
+	// Instructions for one method. Callers pass each instruction's effect on
+	// the operand stack so max_stack can be computed as code is emitted.
+	class Method {
+		private final int access;
+		private final int name;
+		private final int descriptor;
+		private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		private final List<Label> labels = new ArrayList<>();
+		private int stack = 0;
+		private int maxStack = 0;
+		private int maxLocals;
+
+		private Method(int access, String name, String descriptor, int parameterSlots) {
+			this.access = access;
+			this.name = utf8(name);
+			this.descriptor = utf8(descriptor);
+			this.maxLocals = parameterSlots;
+		}
+
+		void op(int opcode, int stackEffect) {
+			code.write(opcode);
+			adjustStack(stackEffect);
+		}
+
+		void op(int opcode, int operand, int stackEffect) {
+			code.write(opcode);
+			writeShort(operand);
+			adjustStack(stackEffect);
+		}
+
+		void pushInt(int value) {
+			if (value >= -1 && value <= 5) {
+				code.write(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				code.write(BIPUSH);
+				code.write(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				code.write(SIPUSH);
+				writeShort(value);
+			} else {
+				code.write(LDC_W);
+				writeShort(integer(value));
+			}
+			adjustStack(1);
+		}
+
+		void pushDouble(double value) {
+			if (Double.doubleToRawLongBits(value) == 0) {
+				code.write(DCONST_0);
+			} else {
+				code.write(LDC2_W);
+				writeShort(doubleConstant(value));
+			}
+			adjustStack(2);
+		}
+
+		void load(int local) {
+			local(ALOAD, local, 1);
+			adjustStack(1);
+		}
+
+		void store(int local) {
+			local(ASTORE, local, 1);
+			adjustStack(-1);
+		}
+
+		// A double takes up the local after its own as well.
+		void loadDouble(int local) {
+			local(DLOAD, local, 2);
+			adjustStack(2);
+		}
+
+		void storeDouble(int local) {
+			local(DSTORE, local, 2);
+			adjustStack(-2);
+		}
+
+		private void local(int opcode, int local, int size) {
+			if (local + size > 0xffff) throw new TooLarge();
+			if (local + size > maxLocals) maxLocals = local + size;
+
+			if (local <= 0xff) {
+				code.write(opcode);
+				code.write(local);
+			} else {
+				code.write(WIDE);
+				code.write(opcode);
+				writeShort(local);
+			}
+		}
+
+		void invoke(int opcode, int methodRef, int argumentSlots, boolean returnsValue) {
+			invoke(opcode, methodRef, argumentSlots, returnsValue ? 1 : 0);
+		}
+
+		// A method that returns a double leaves two slots of the stack.
+		void invoke(int opcode, int methodRef, int argumentSlots, int resultSlots) {
+			code.write(opcode);
+			writeShort(methodRef);
+			if (opcode == INVOKEINTERFACE) {
+				code.write(argumentSlots + 1);
+				code.write(0);
+			}
+
+			int receiver = opcode == INVOKESTATIC ? 0 : 1;
+			adjustStack(-argumentSlots - receiver + resultSlots);
+		}
+
+		void jump(int opcode, Label target) {
+			int start = code.size();
+			code.write(opcode);
+			writeShort(0);
+			adjustStack(opcode == GOTO ? 0 : -1);
+
+			target.branches.add(start);
+			if (target.stack == -1) target.stack = stack;
+			if (!labels.contains(target)) labels.add(target);
+		}
+
+		void place(Label label) {
+			label.position = code.size();
+			// Code after an unconditional jump is only reached through the label.
+			if (label.stack != -1) {
+				stack = label.stack;
+			} else {
+				label.stack = stack;
+			}
+			if (!labels.contains(label)) labels.add(label);
+		}
+
+		private void adjustStack(int effect) {
+			stack += effect;
+			if (stack > maxStack) maxStack = stack;
+		}
+
+		private void writeShort(int value) {
+			code.write((value >> 8) & 0xff);
+			code.write(value & 0xff);
+		}
+
+		void end() {
+			byte[] bytes = code.toByteArray();
+			if (bytes.length > 0xffff) throw new TooLarge();
+
+			for (Label label : labels) {
+				for (int branch : label.branches) {
+					int offset = label.position - branch;
+					if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) throw new TooLarge();
+					bytes[branch + 1] = (byte)((offset >> 8) & 0xff);
+					bytes[branch + 2] = (byte)(offset & 0xff);
+				}
+			}
+
+			ByteArrayOutputStream method = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(method);
+			try {
+				out.writeShort(access);
+				out.writeShort(name);
+				out.writeShort(descriptor);
+				out.writeShort(1);
+				out.writeShort(utf8("Code"));
+				out.writeInt(12 + bytes.length);
+				out.writeShort(maxStack);
+				out.writeShort(maxLocals);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+				out.writeShort(0);
+				out.writeShort(0);
+			} catch (IOException error) {
+				throw new AssertionError(error);
+			}
+			methods.add(method.toByteArray());
+		}
+	}
+}
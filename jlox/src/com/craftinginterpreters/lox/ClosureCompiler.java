@@ -0,0 +1,710 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Converts a resolved syntax tree into a tree of pre-linked closures, once.
+// Each node knows its children and everything the resolver worked out about
+// it, so running the program never goes back through accept() or a visitor.
+// Runtime objects (functions, classes, instances, environments) are the same
+// ones the tree-walking Interpreter uses.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Eval>,
+								 Stmt.Visitor<ClosureCompiler.Exec> {
+	interface Eval {
+		Object eval(Environment environment);
+	}
+
+	// Returns null unless the statement ran a return.
+	interface Exec {
+		Return exec(Environment environment);
+	}
+
+	private final Interpreter interpreter;
+	private final Environment globals;
+
+	ClosureCompiler(Interpreter interpreter) {
+		this.interpreter = interpreter;
+		this.globals = interpreter.globals;
+	}
+
+	Exec compile(List<Stmt> statements) {
+		return sequence(compileAll(statements));
+	}
+
+	private Eval compile(Expr expr) {
+		return expr.accept(this);
+	}
+
+	private Exec compile(Stmt stmt) {
+		return stmt.accept(this);
+	}
+
+	private Exec[] compileAll(List<Stmt> statements) {
+		Exec[] code = new Exec[statements.size()];
+		for (int i = 0; i < code.length; i++) {
+			code[i] = compile(statements.get(i));
+		}
+		return code;
+	}
+
+	private static Exec sequence(Exec[] code) {
+		switch (code.length) {
+			case 0: return environment -> null;
+			case 1: return code[0];
+			case 2: {
+				Exec first = code[0];
+				Exec second = code[1];
+				return environment -> {
+					Return result = first.exec(environment);
+					if (result != null) return result;
+					return second.exec(environment);
+				};
+			}
+			default:
+				return environment -> {
+					for (Exec statement : code) {
+						Return result = statement.exec(environment);
+						if (result != null) return result;
+					}
+					return null;
+				};
+		}
+	}
+
+	@Override
+	public Eval visitLiteralExpr(Expr.Literal expr) {
+		Object value = expr.value;
+		return environment -> value;
+	}
+
+	@Override
+	public Eval visitGroupingExpr(Expr.Grouping expr) {
+		return compile(expr.expression);
+	}
+
+	@Override
+	public Eval visitVariableExpr(Expr.Variable expr) {
+		if (expr.slot == null) {
+			Token name = expr.name;
+			int global = expr.global;
+			return environment -> globals.getGlobal(global, name);
+		}
+
+		return lookUpLocal(expr.slot);
+	}
+
+	@Override
+	public Eval visitThisExpr(Expr.This expr) {
+		return lookUpLocal(expr.slot);
+	}
+
+	private Eval lookUpLocal(Resolver.Slot slot) {
+		int index = slot.index;
+		if (slot.isUpvalue) {
+			if (slot.isBoxed) return environment -> environment.getBoxedUpvalue(index);
+			return environment -> environment.getUpvalue(index);
+		}
+
+		if (slot.isBoxed) return environment -> environment.getBoxedAt(index);
+		return environment -> environment.getAt(index);
+	}
+
+	@Override
+	public Eval visitAssignExpr(Expr.Assign expr) {
+		Eval value = compile(expr.value);
+		Token name = expr.name;
+
+		Resolver.Slot slot = expr.slot;
+		if (slot == null) {
+			int global = expr.global;
+			return environment -> {
+				Object result = value.eval(environment);
+				globals.assignGlobal(global, name, result);
+				return result;
+			};
+		}
+
+		int index = slot.index;
+		if (slot.isUpvalue) {
+			return environment -> {
+				Object result = value.eval(environment);
+				environment.assignBoxedUpvalue(index, result);
+				return result;
+			};
+		}
+
+		if (slot.isBoxed) {
+			return environment -> {
+				Object result = value.eval(environment);
+				environment.assignBoxedAt(index, result);
+				return result;
+			};
+		}
+
+		return environment -> {
+			Object result = value.eval(environment);
+			environment.assignAt(index, result);
+			return result;
+		};
+	}
+
+	@Override
+	public Eval visitUnaryExpr(Expr.Unary expr) {
+		Eval right = compile(expr.right);
+		Token operator = expr.operator;
+
+		switch (operator.type) {
+			case MINUS:
+				return environment -> {
+					Object a = right.eval(environment);
+					Interpreter.checkNumberOperand(operator, a);
+					return -(double)a;
+				};
+			case BANG:
+				return environment -> !Interpreter.isTruthy(right.eval(environment));
+		}
+
+		// Unreachable
+		return null;
+	}
+
+	@Override
+	public Eval visitBinaryExpr(Expr.Binary expr) {
+		Eval left = compile(expr.left);
+		Eval right = compile(expr.right);
+		Token operator = expr.operator;
+
+		switch (operator.type) {
+			case MINUS:
+				return environment -> {
+					Object a = left.eval(environment);
+					Object b = right.eval(environment);
+					Interpreter.checkNumberOperands(operator, a, b);
+					return (double)a - (double)b;
+				};
+			case SLASH:
+				return environment -> {
+					Object a = left.eval(environment);
+					Object b = right.eval(environment);
+					Interpreter.checkNumberOperands(operator, a, b);
+					if ((double)b == 0) throw new RuntimeError(operator, "Cannot divide by zero.");
+					return (double)a / (double)b;
+				};
+			case STAR:
+				return environment -> {
+					Object a = left.eval(environment);
+					Object b = right.eval(environment);
+					Interpreter.checkNumberOperands(operator, a, b);
+					return (double)a * (double)b;
+				};
+			case PLUS:
+				return environment -> {
+					Object a = left.eval(environment);
+					Object b = right.eval(environment);
+					if (a instanceof Double && b instanceof Double) {
+						return (double)a + (double)b;
+					}
+
+					if (Interpreter.isString(a) || Interpreter.isString(b)) {
+						return interpreter.concatenate(a, b);
+					}
+
+					throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+				};
+			case GREATER:
+				return environment -> {
+					Object a = left.eval(environment);
+					Object b = right.eval(environment);
+					Interpreter.checkNumberOperands(operator, a, b);
+					return (double)a > (double)b;
+				};
+			case GREATER_EQUAL:
+				return environment -> {
+					Object a = left.eval(environment);
+					Object b = right.eval(environment);
+					Interpreter.checkNumberOperands(operator, a, b);
+					return (double)a >= (double)b;
+				};
+			case LESS:
+				return environment -> {
+					Object a = left.eval(environment);
+					Object b = right.eval(environment);
+					Interpreter.checkNumberOperands(operator, a, b);
+					return (double)a < (double)b;
+				};
+			case LESS_EQUAL:
+				return environment -> {
+					Object a = left.eval(environment);
+					Object b = right.eval(environment);
+					Interpreter.checkNumberOperands(operator, a, b);
+					return (double)a <= (double)b;
+				};
+			case BANG_EQUAL:
+				return environment -> {
+					Object a = left.eval(environment);
+					return !Interpreter.isEqual(a, right.eval(environment));
+				};
+			case EQUAL_EQUAL:
+				return environment -> {
+					Object a = left.eval(environment);
+					return Interpreter.isEqual(a, right.eval(environment));
+				};
+			case COMMA:
+				return environment -> {
+					left.eval(environment);
+					return right.eval(environment);
+				};
+		}
+
+		// Unreachable.
+		return null;
+	}
+
+	@Override
+	public Eval visitLogicalExpr(Expr.Logical expr) {
+		Eval left = compile(expr.left);
+		Eval right = compile(expr.right);
+
+		if (expr.operator.type == TokenType.OR) {
+			return environment -> {
+				Object value = left.eval(environment);
+				if (Interpreter.isTruthy(value)) return value;
+				return right.eval(environment);
+			};
+		}
+
+		return environment -> {
+			Object value = left.eval(environment);
+			if (!Interpreter.isTruthy(value)) return value;
+			return right.eval(environment);
+		};
+	}
+
+	@Override
+	public Eval visitConditionalExpr(Expr.Conditional expr) {
+		Eval condition = compile(expr.condition);
+		Eval thenBranch = compile(expr.thenBranch);
+		Eval elseBranch = compile(expr.elseBranch);
+		return environment -> Interpreter.isTruthy(condition.eval(environment))
+				? thenBranch.eval(environment)
+				: elseBranch.eval(environment);
+	}
+
+	@Override
+	public Eval visitCallExpr(Expr.Call expr) {
+		return call(expr, false);
+	}
+
+	// See Interpreter.call() for what happens to a call in tail position.
+	private Eval call(Expr.Call expr, boolean isTail) {
+		Arguments arguments = arguments(expr, isTail);
+
+		if (expr.callee instanceof Expr.Get) {
+			return invoke((Expr.Get)expr.callee, arguments);
+		}
+
+		Eval callee = compile(expr.callee);
+		if (expr.intrinsic != null) return intrinsic(expr, callee, arguments);
+		return environment -> arguments.call(environment, callee.eval(environment), null, null);
+	}
+
+	// Runs the native a call names, unless its global no longer holds it.
+	private Eval intrinsic(Expr.Call expr, Eval callee, Arguments otherwise) {
+		Native function = expr.intrinsic;
+		Token paren = expr.paren;
+		Eval[] arguments = new Eval[expr.arguments.size()];
+		for (int i = 0; i < arguments.length; i++) {
+			arguments[i] = compile(expr.arguments.get(i));
+		}
+
+		switch (arguments.length) {
+			case 0:
+				return environment -> {
+					Object value = callee.eval(environment);
+					if (value != function) return otherwise.call(environment, value, null, null);
+					return function.apply(paren, null, null, null);
+				};
+			case 1: {
+				Eval first = arguments[0];
+				return environment -> {
+					Object value = callee.eval(environment);
+					if (value != function) return otherwise.call(environment, value, null, null);
+					return function.apply(paren, first.eval(environment), null, null);
+				};
+			}
+			case 2: {
+				Eval first = arguments[0];
+				Eval second = arguments[1];
+				return environment -> {
+					Object value = callee.eval(environment);
+					if (value != function) return otherwise.call(environment, value, null, null);
+					Object a = first.eval(environment);
+					Object b = second.eval(environment);
+					return function.apply(paren, a, b, null);
+				};
+			}
+			default: {
+				Eval first = arguments[0];
+				Eval second = arguments[1];
+				Eval third = arguments[2];
+				return environment -> {
+					Object value = callee.eval(environment);
+					if (value != function) return otherwise.call(environment, value, null, null);
+					Object a = first.eval(environment);
+					Object b = second.eval(environment);
+					Object c = third.eval(environment);
+					return function.apply(paren, a, b, c);
+				};
+			}
+		}
+	}
+
+	// Calls a method with the instance as its receiver instead of binding it.
+	private Eval invoke(Expr.Get get, Arguments arguments) {
+		Eval object = compile(get.object);
+		Token name = get.name;
+		Shape.Cache cache = get.cache;
+
+		return environment -> {
+			Object value = object.eval(environment);
+			if (!(value instanceof LoxInstance)) {
+				throw new RuntimeError(name, "Only instances have properties.");
+			}
+
+			LoxInstance instance = (LoxInstance)value;
+			LoxFunction method = instance.lookUpMethod(name, cache);
+			if (method != null) return arguments.call(environment, null, method, instance);
+			return arguments.call(environment, instance.get(name, cache), null, null);
+		};
+	}
+
+	// A call's compiled arguments. Evaluates them and calls method on
+	// receiver, or callee if there's no method.
+	private interface Arguments {
+		Object call(Environment environment, Object callee, LoxFunction method, LoxInstance receiver);
+	}
+
+	private Arguments arguments(Expr.Call expr, boolean isTail) {
+		Eval[] arguments = new Eval[expr.arguments.size()];
+		for (int i = 0; i < arguments.length; i++) {
+			arguments[i] = compile(expr.arguments.get(i));
+		}
+		Token paren = expr.paren;
+
+		Arguments call = arguments(arguments, paren);
+		if (!isTail) return call;
+
+		// Only a call to a Lox function is handed back as a tail call.
+		return (environment, callee, method, receiver) -> {
+			if (method == null && !(callee instanceof LoxFunction)) {
+				return call.call(environment, callee, null, null);
+			}
+
+			Object[] values = evaluate(arguments, environment);
+			if (method != null) return interpreter.tailInvoke(method, receiver, values, paren);
+			return interpreter.tailCall(callee, values, paren);
+		};
+	}
+
+	private static Object[] evaluate(Eval[] arguments, Environment environment) {
+		Object[] values = new Object[arguments.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = arguments[i].eval(environment);
+		}
+		return values;
+	}
+
+	// Calls with up to three arguments go through the interpreter's
+	// fixed-arity entry points, so the arguments never need an array.
+	private Arguments arguments(Eval[] arguments, Token paren) {
+		switch (arguments.length) {
+			case 0:
+				return (environment, callee, method, receiver) -> {
+					if (method != null) return interpreter.invoke(method, receiver, paren);
+					return interpreter.call(callee, paren);
+				};
+			case 1: {
+				Eval first = arguments[0];
+				return (environment, callee, method, receiver) -> {
+					Object a = first.eval(environment);
+					if (method != null) return interpreter.invoke(method, receiver, paren, a);
+					return interpreter.call(callee, paren, a);
+				};
+			}
+			case 2: {
+				Eval first = arguments[0];
+				Eval second = arguments[1];
+				return (environment, callee, method, receiver) -> {
+					Object a = first.eval(environment);
+					Object b = second.eval(environment);
+					if (method != null) return interpreter.invoke(method, receiver, paren, a, b);
+					return interpreter.call(callee, paren, a, b);
+				};
+			}
+			case 3: {
+				Eval first = arguments[0];
+				Eval second = arguments[1];
+				Eval third = arguments[2];
+				return (environment, callee, method, receiver) -> {
+					Object a = first.eval(environment);
+					Object b = second.eval(environment);
+					Object c = third.eval(environment);
+					if (method != null) return interpreter.invoke(method, receiver, paren, a, b, c);
+					return interpreter.call(callee, paren, a, b, c);
+				};
+			}
+			default:
+				return (environment, callee, method, receiver) -> {
+					Object[] values = evaluate(arguments, environment);
+					if (method != null) return interpreter.invoke(method, receiver, values, paren);
+					return interpreter.call(callee, values, paren);
+				};
+		}
+	}
+
+	@Override
+	public Eval visitGetExpr(Expr.Get expr) {
+		Eval object = compile(expr.object);
+		Token name = expr.name;
+		Shape.Cache cache = expr.cache;
+
+		return environment -> {
+			Object instance = object.eval(environment);
+			if (instance instanceof LoxInstance) {
+				return ((LoxInstance)instance).get(name, cache);
+			}
+
+			throw new RuntimeError(name, "Only instances have properties.");
+		};
+	}
+
+	@Override
+	public Eval visitSetExpr(Expr.Set expr) {
+		Eval object = compile(expr.object);
+		Eval value = compile(expr.value);
+		Token name = expr.name;
+		Shape.Cache cache = expr.cache;
+
+		return environment -> {
+			Object instance = object.eval(environment);
+
+			if (!(instance instanceof LoxInstance)) {
+				throw new RuntimeError(name, "Only instances have fields.");
+			}
+
+			Object result = value.eval(environment);
+			((LoxInstance)instance).set(name, result, cache);
+			return result;
+		};
+	}
+
+	@Override
+	public Eval visitSuperExpr(Expr.Super expr) {
+		Eval superclassValue = lookUpLocal(expr.slot);
+		Eval objectValue = lookUpLocal(expr.thisSlot);
+		Token method = expr.method;
+
+		return environment -> {
+			LoxClass superclass = (LoxClass)superclassValue.eval(environment);
+			LoxInstance object = (LoxInstance)objectValue.eval(environment);
+
+			LoxFunction function = superclass.findMethod(method.lexeme);
+			if (function == null) {
+				throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+			}
+
+			return function.bind(object);
+		};
+	}
+
+	@Override
+	public Exec visitExpressionStmt(Stmt.Expression stmt) {
+		Eval expression = compile(stmt.expression);
+		return environment -> {
+			expression.eval(environment);
+			return null;
+		};
+	}
+
+	@Override
+	public Exec visitPrintStmt(Stmt.Print stmt) {
+		Eval expression = compile(stmt.expression);
+		return environment -> {
+			interpreter.print(expression.eval(environment));
+			return null;
+		};
+	}
+
+	@Override
+	public Exec visitVarStmt(Stmt.Var stmt) {
+		String name = stmt.name.lexeme;
+		if (stmt.initializer == null) {
+			boolean isBoxed = stmt.isBoxed;
+			return environment -> {
+				environment.define(name, isBoxed ? new Environment.Box(null) : null);
+				return null;
+			};
+		}
+
+		Eval initializer = compile(stmt.initializer);
+		if (stmt.isBoxed) {
+			return environment -> {
+				environment.define(name, new Environment.Box(initializer.eval(environment)));
+				return null;
+			};
+		}
+
+		return environment -> {
+			environment.define(name, initializer.eval(environment));
+			return null;
+		};
+	}
+
+	@Override
+	public Exec visitBlockStmt(Stmt.Block stmt) {
+		Exec body = sequence(compileAll(stmt.statements));
+		int frameSize = stmt.frameSize;
+		if (!stmt.isFlattened) {
+			return environment -> {
+				try {
+					return body.exec(interpreter.pushFrame(Environment.NO_UPVALUES, frameSize));
+				} finally {
+					interpreter.popFrame();
+				}
+			};
+		}
+
+		return environment -> {
+			int mark = environment.mark();
+			try {
+				return body.exec(environment);
+			} finally {
+				environment.release(mark);
+			}
+		};
+	}
+
+	@Override
+	public Exec visitIfStmt(Stmt.If stmt) {
+		Eval condition = compile(stmt.condition);
+		Exec thenBranch = compile(stmt.thenBranch);
+
+		if (stmt.elseBranch == null) {
+			return environment -> {
+				if (Interpreter.isTruthy(condition.eval(environment))) {
+					return thenBranch.exec(environment);
+				}
+				return null;
+			};
+		}
+
+		Exec elseBranch = compile(stmt.elseBranch);
+		return environment -> {
+			if (Interpreter.isTruthy(condition.eval(environment))) {
+				return thenBranch.exec(environment);
+			}
+			return elseBranch.exec(environment);
+		};
+	}
+
+	@Override
+	public Exec visitWhileStmt(Stmt.While stmt) {
+		Eval condition = compile(stmt.condition);
+		Exec body = compile(stmt.body);
+		return environment -> {
+			if (stmt.compiled != null) return interpreter.runCompiled(stmt, environment);
+
+			while (Interpreter.isTruthy(condition.eval(environment))) {
+				Return result = body.exec(environment);
+				if (result != null) return result;
+				if (interpreter.isHot(stmt, environment)) return interpreter.runCompiled(stmt, environment);
+			}
+			return null;
+		};
+	}
+
+	@Override
+	public Exec visitReturnStmt(Stmt.Return stmt) {
+		if (stmt.value == null) {
+			return environment -> Return.NIL;
+		}
+
+		Eval value = stmt.isTailCall ? call((Expr.Call)stmt.value, true) : compile(stmt.value);
+		return environment -> new Return(value.eval(environment));
+	}
+
+	@Override
+	public Exec visitFunctionStmt(Stmt.Function stmt) {
+		Exec body = sequence(compileAll(stmt.body));
+		String name = stmt.name.lexeme;
+		if (stmt.isBoxed) {
+			return environment -> {
+				Environment.Box box = new Environment.Box(null);
+				environment.define(name, box);
+				box.value = new LoxFunction(stmt, environment.capture(stmt.upvalues), false, body);
+				return null;
+			};
+		}
+
+		return environment -> {
+			environment.define(name, new LoxFunction(stmt, environment.capture(stmt.upvalues), false, body));
+			return null;
+		};
+	}
+
+	@Override
+	public Exec visitClassStmt(Stmt.Class stmt) {
+		Eval superclassValue = stmt.superclass == null ? null : compile(stmt.superclass);
+
+		Exec[] bodies = new Exec[stmt.methods.size()];
+		for (int i = 0; i < bodies.length; i++) {
+			bodies[i] = sequence(compileAll(stmt.methods.get(i).body));
+		}
+
+		return environment -> {
+			Object superclass = null;
+			if (superclassValue != null) {
+				superclass = superclassValue.eval(environment);
+				if (!(superclass instanceof LoxClass)) {
+					throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+				}
+			}
+
+			Environment.Box box = stmt.isBoxed ? new Environment.Box(null) : null;
+			int slot = environment.define(stmt.name.lexeme, box);
+
+			Environment frame = environment;
+			int mark = environment.mark();
+			if (superclass != null && environment == globals) {
+				frame = interpreter.pushFrame(Environment.NO_UPVALUES, 1);
+			}
+
+			Map<String, LoxFunction> methods = new HashMap<>();
+			try {
+				if (superclass != null) frame.define("super", superclass);
+
+				for (int i = 0; i < bodies.length; i++) {
+					Stmt.Function method = stmt.methods.get(i);
+					boolean isInitializer = method.name.lexeme.equals("init");
+					methods.put(method.name.lexeme,
+							new LoxFunction(method, frame.capture(method.upvalues), isInitializer, bodies[i]));
+				}
+			} finally {
+				if (frame != environment) {
+					interpreter.popFrame();
+				} else {
+					environment.release(mark);
+				}
+			}
+
+			LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods);
+			if (box != null) {
+				box.value = klass;
+			} else {
+				environment.assignAt(slot, klass);
+			}
+			return null;
+		};
+	}
+}
@@ -1,62 +1,231 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+// Either the globals or a frame: the locals of one call of a function, with
+// the upvalues the function captured when it was created.
 class Environment {
-	final Environment enclosing;
-	private final Map<String, Object> values = new HashMap<>();
+	static final Object[] NO_UPVALUES = new Object[0];
+
+	// A captured local that's assigned after it's captured lives in a Box,
+	// shared by its frame and every closure that captured it.
+	static final class Box {
+		Object value;
+
+		Box(Object value) {
+			this.value = value;
+		}
+	}
+
+	Object[] upvalues;
+	// Only the global environment looks names up by string, and only to find
+	// the number of the slot the name's value is in. The resolver numbers
+	// every global name it sees, defined yet or not, so code refers to a
+	// global by number; frames are laid out by the resolver and store their
+	// values by slot index.
+	private final Map<String, Integer> globals;
+	private Object[] slots;
+	private int count = 0;
+	// Numbers the interpreter stores without boxing live here, with UNBOXED
+	// in the matching slot.
+	private static final Object UNBOXED = new Object();
+	private double[] numbers;
+	// What a global's slot holds until the global is defined.
+	private static final Object UNDEFINED = new Object();
 
 	Environment() {
-		enclosing = null;
+		upvalues = NO_UPVALUES;
+		globals = new HashMap<>();
+		slots = new Object[64];
+	}
+
+	// A frame the resolver found needs size slots.
+	Environment(Object[] upvalues, int size) {
+		this.upvalues = upvalues;
+		globals = null;
+		slots = new Object[Math.max(size, 1)];
 	}
 
-	Environment(Environment enclosing) {
-		this.enclosing = enclosing;
+	// Readies a frame the interpreter is reusing for another call.
+	void reset(Object[] upvalues, int size) {
+		this.upvalues = upvalues;
+		if (slots.length < size) slots = new Object[size];
+		count = 0;
 	}
 
-	void define(String name, Object value) {
-		values.put(name, value);
+	// Lets go of everything a frame holds when its call returns, so a frame
+	// waiting in the pool doesn't keep the last call's values alive.
+	void clear() {
+		Arrays.fill(slots, 0, count, null);
+		upvalues = NO_UPVALUES;
+		count = 0;
 	}
 
-	Environment ancestor(int distance) {
-		Environment environment = this;
-		for (int i = 0; i < distance; i++) {
-			environment = environment.enclosing;
+	// A block's locals follow those already defined in the frame, and
+	// release() drops them when the block ends.
+	int mark() {
+		return count;
+	}
+
+	void release(int mark) {
+		Arrays.fill(slots, mark, count, null);
+		count = mark;
+	}
+
+	// Returns the slot the value went in.
+	int define(String name, Object value) {
+		if (globals != null) {
+			int index = intern(name);
+			slots[index] = value;
+			return index;
 		}
 
-		return environment;
+		// Locals are defined in the same order the resolver declared them, so
+		// appending places each one in its resolved slot.
+		if (count == slots.length) slots = Arrays.copyOf(slots, count * 2);
+		slots[count] = value;
+		return count++;
 	}
 
-	Object getAt(int distance, String name) {
-		return ancestor(distance).values.get(name);
+	void defineNumber(String name, double value) {
+		if (globals != null) {
+			slots[intern(name)] = value;
+			return;
+		}
+
+		if (count == slots.length) slots = Arrays.copyOf(slots, count * 2);
+		setNumber(count++, value);
 	}
 
-	void assignAt(int distance, Token name, Object value) {
-		ancestor(distance).values.put(name.lexeme, value);
+	private void setNumber(int slot, double value) {
+		if (numbers == null) {
+			numbers = new double[slot + 1];
+		} else if (slot >= numbers.length) {
+			numbers = Arrays.copyOf(numbers, Math.max(slot + 1, numbers.length * 2));
+		}
+
+		numbers[slot] = value;
+		slots[slot] = UNBOXED;
 	}
 
-	Object get(Token name) {
-		if (values.containsKey(name.lexeme)) {
-			return values.get(name.lexeme);
+	Object getAt(int slot) {
+		Object value = slots[slot];
+		if (value == UNBOXED) {
+			// Box once, so later reads share the same Double.
+			value = numbers[slot];
+			slots[slot] = value;
 		}
 
-		if (enclosing != null) return enclosing.get(name);
+		return value;
+	}
+
+	double getNumberAt(int slot) {
+		Object value = slots[slot];
+		if (value == UNBOXED) return numbers[slot];
+		if (value instanceof Double) return (double)value;
 
-		throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+		throw new NotANumber(value);
 	}
 
-	void assign(Token name, Object value) {
-		if (values.containsKey(name.lexeme)) {
-			values.put(name.lexeme, value);
-			return;
+	void assignAt(int slot, Object value) {
+		slots[slot] = value;
+	}
+
+	void assignNumberAt(int slot, double value) {
+		setNumber(slot, value);
+	}
+
+	// A parameter that's captured and assigned moves into a Box on entry.
+	void box(int slot) {
+		slots[slot] = new Box(getAt(slot));
+	}
+
+	Object getBoxedAt(int slot) {
+		return ((Box)slots[slot]).value;
+	}
+
+	void assignBoxedAt(int slot, Object value) {
+		((Box)slots[slot]).value = value;
+	}
+
+	Object getUpvalue(int index) {
+		return upvalues[index];
+	}
+
+	Object getBoxedUpvalue(int index) {
+		return ((Box)upvalues[index]).value;
+	}
+
+	void assignBoxedUpvalue(int index, Object value) {
+		((Box)upvalues[index]).value = value;
+	}
+
+	// Any local or upvalue the resolver found. An upvalue that's assigned
+	// is always boxed.
+	Object get(Resolver.Slot slot) {
+		if (slot.isUpvalue) {
+			return slot.isBoxed ? getBoxedUpvalue(slot.index) : getUpvalue(slot.index);
 		}
 
-		if (enclosing != null) {
-			enclosing.assign(name, value);
-			return;
+		return slot.isBoxed ? getBoxedAt(slot.index) : getAt(slot.index);
+	}
+
+	void assign(Resolver.Slot slot, Object value) {
+		if (slot.isUpvalue) {
+			assignBoxedUpvalue(slot.index, value);
+		} else if (slot.isBoxed) {
+			assignBoxedAt(slot.index, value);
+		} else {
+			assignAt(slot.index, value);
+		}
+	}
+
+	// The upvalues for a function created in this frame: its locals, boxed
+	// or not, and upvalues it captured itself.
+	Object[] capture(Resolver.Upvalue[] upvalues) {
+		if (upvalues.length == 0) return NO_UPVALUES;
+
+		Object[] captured = new Object[upvalues.length];
+		for (int i = 0; i < upvalues.length; i++) {
+			Resolver.Upvalue upvalue = upvalues[i];
+			captured[i] = upvalue.isLocal ? getAt(upvalue.index) : this.upvalues[upvalue.index];
 		}
 
-		throw new RuntimeError(name, "Undefined variable'" + name.lexeme + "'.");
+		return captured;
+	}
+
+	// The number of a global's slot, giving the name a new, undefined slot
+	// the first time it's seen.
+	int intern(String name) {
+		Integer index = globals.get(name);
+		if (index != null) return index;
+
+		if (count == slots.length) slots = Arrays.copyOf(slots, count * 2);
+		slots[count] = UNDEFINED;
+		globals.put(name, count);
+		return count++;
+	}
+
+	Object getGlobal(int index, Token name) {
+		Object value = slots[index];
+		if (value == UNDEFINED) {
+			throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+		}
+
+		return value;
+	}
+
+	void assignGlobal(int index, Token name, Object value) {
+		if (slots[index] == UNDEFINED) {
+			throw new RuntimeError(name, "Undefined variable'" + name.lexeme + "'.");
+		}
+
+		slots[index] = value;
+	}
+
+	void defineGlobal(int index, Object value) {
+		slots[index] = value;
 	}
 }
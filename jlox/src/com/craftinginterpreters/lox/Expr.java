@@ -33,6 +33,7 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        Specialization specialization;
     }
     static class Call extends Expr {
         Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -49,6 +50,7 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        Native intrinsic;
     }
     static class Get extends Expr {
         Get(Expr object, Token name) {
@@ -63,6 +65,7 @@ abstract class Expr {
 
         final Expr object;
         final Token name;
+        Shape.Cache cache = new Shape.Cache();
     }
     static class Grouping extends Expr {
         Grouping(Expr expression) {
@@ -103,6 +106,7 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        Specialization specialization;
     }
     static class Set extends Expr {
         Set(Expr object, Token name, Expr value) {
@@ -119,6 +123,7 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        Shape.Cache cache = new Shape.Cache();
     }
     static class Super extends Expr {
         Super(Token keyword, Token method) {
@@ -133,6 +138,8 @@ abstract class Expr {
 
         final Token keyword;
         final Token method;
+        Resolver.Slot slot;
+        Resolver.Slot thisSlot;
     }
     static class This extends Expr {
         This(Token keyword) {
@@ -145,6 +152,7 @@ abstract class Expr {
         }
 
         final Token keyword;
+        Resolver.Slot slot;
     }
     static class Unary extends Expr {
         Unary(Token operator, Expr right) {
@@ -159,6 +167,7 @@ abstract class Expr {
 
         final Token operator;
         final Expr right;
+        Specialization specialization;
     }
     static class Conditional extends Expr {
         Conditional(Expr condition, Expr thenBranch, Expr elseBranch) {
@@ -187,6 +196,8 @@ abstract class Expr {
         }
 
         final Token name;
+        Resolver.Slot slot;
+        int global;
     }
     static class Assign extends Expr {
         Assign(Token name, Expr value) {
@@ -201,6 +212,8 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        Resolver.Slot slot;
+        int global;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -1,29 +1,32 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 class Interpreter implements Expr.Visitor<Object>,
-							 Stmt.Visitor<Void> {
+							 Stmt.Visitor<Return> {
 	final Environment globals = new Environment();
 	private Environment environment = globals;
-	private final Map<Expr, Integer> locals = new HashMap<>();
+	// Frames for calls, and for blocks at the top level. Closures copy what
+	// they capture, so nothing refers to a frame once its call returns, and
+	// each depth of the call stack keeps one to reuse for the next call that
+	// gets that deep.
+	private Environment[] frames = new Environment[16];
+	private int frameCount = 0;
+	// Where print writes. Embedders can pass their own.
+	Output output;
 
 	Interpreter() {
-		globals.define("clock", new LoxCallable() {
-			@Override
-			public int arity() { return 0; }
-
-			@Override
-			public Object call(Interpreter interpreter, List<Object>arguments) {
-				return (double)System.currentTimeMillis() / 1000.0;
-			}
+		this(new Output.Buffered(new FileOutputStream(FileDescriptor.out)));
+	}
 
-			@Override
-			public String toString() { return "<native fn>"; }
-		});
+	Interpreter(Output output) {
+		this.output = output;
+		Native.defineAll(globals);
 	}
 
 	void interpret(List<Stmt> statements) {
@@ -36,6 +39,14 @@ class Interpreter implements Expr.Visitor<Object>,
 		}
 	}
 
+	void interpret(ClosureCompiler.Exec program) {
+		try {
+			program.exec(globals);
+		} catch (RuntimeError error) {
+			Lox.runtimeError(error);
+		}
+	}
+
 	@Override
 	public Object visitLiteralExpr(Expr.Literal expr) {
 		return expr.value;
@@ -45,6 +56,17 @@ class Interpreter implements Expr.Visitor<Object>,
 	public Object visitLogicalExpr(Expr.Logical expr) {
 		Object left = evaluate(expr.left);
 
+		if (expr.specialization == Specialization.BOOLEAN) {
+			if (left instanceof Boolean) {
+				if ((boolean)left == (expr.operator.type == TokenType.OR)) return left;
+				return evaluate(expr.right);
+			}
+			expr.specialization = Specialization.GENERIC;
+		} else if (expr.specialization == null) {
+			expr.specialization = left instanceof Boolean
+					? Specialization.BOOLEAN : Specialization.GENERIC;
+		}
+
 		if (expr.operator.type == TokenType.OR) {
 			if (isTruthy(left)) return left;
 		} else {
@@ -63,16 +85,14 @@ class Interpreter implements Expr.Visitor<Object>,
 		}
 
 		Object value = evaluate(expr.value);
-		((LoxInstance)object).set(expr.name, value);
+		((LoxInstance)object).set(expr.name, value, expr.cache);
 		return value;
 	}
 
 	@Override
 	public Object visitSuperExpr(Expr.Super expr) {
-		int distance = locals.get(expr);
-		LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-
-		LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
+		LoxClass superclass = (LoxClass)environment.get(expr.slot);
+		LoxInstance object = (LoxInstance)environment.get(expr.thisSlot);
 
 		LoxFunction method = superclass.findMethod(expr.method.lexeme);
 
@@ -85,7 +105,8 @@ class Interpreter implements Expr.Visitor<Object>,
 
 	@Override
 	public Object visitThisExpr(Expr.This expr) {
-		return lookUpVariable(expr.keyword, expr);
+		// The resolver only allows "this" inside a method, so it's always local.
+		return environment.get(expr.slot);
 	}
 
 	@Override
@@ -95,10 +116,36 @@ class Interpreter implements Expr.Visitor<Object>,
 
 	@Override
 	public Object visitUnaryExpr(Expr.Unary expr) {
+		if (expr.specialization == Specialization.NUMBER) {
+			try {
+				return evaluateNumber(expr);
+			} catch (NotANumber error) {
+				return error.value;
+			}
+		}
+
 		Object right = evaluate(expr.right);
 
+		if (expr.specialization == Specialization.BOOLEAN) {
+			if (right instanceof Boolean) return !(boolean)right;
+			expr.specialization = Specialization.GENERIC;
+		} else if (expr.specialization == null) {
+			if (expr.operator.type == TokenType.MINUS && right instanceof Double) {
+				expr.specialization = Specialization.NUMBER;
+			} else if (expr.operator.type == TokenType.BANG && right instanceof Boolean) {
+				expr.specialization = Specialization.BOOLEAN;
+			} else {
+				expr.specialization = Specialization.GENERIC;
+			}
+		}
+
+		return unary(expr, right);
+	}
+
+	private Object unary(Expr.Unary expr, Object right) {
 		switch (expr.operator.type) {
 			case MINUS:
+				checkNumberOperand(expr.operator, right);
 				return -(double)right;
 			case BANG:
 				return !isTruthy(right);
@@ -111,22 +158,48 @@ class Interpreter implements Expr.Visitor<Object>,
 	@Override
 	public Object visitVariableExpr(Expr.Variable expr) {
 		// return environment.get(expr.name);
-		return lookUpVariable(expr.name, expr);
+		return lookUpVariable(expr.name, expr.slot, expr.global);
 	}
 
-	private Object lookUpVariable(Token name, Expr expr) {
-		Integer distance = locals.get(expr);
-		if (distance != null) {
-			return environment.getAt(distance, name.lexeme);
+	private Object lookUpVariable(Token name, Resolver.Slot slot, int global) {
+		if (slot != null) {
+			return environment.get(slot);
 		} else {
-			return globals.get(name);
+			return globals.getGlobal(global, name);
 		}
 	}
 
 	public Object visitBinaryExpr(Expr.Binary expr) {
+		// Sites that have only seen numbers evaluate their operands unboxed and
+		// box just the result.
+		if (expr.specialization == Specialization.NUMBER) {
+			if (isArithmetic(expr.operator.type)) {
+				try {
+					return evaluateNumber(expr);
+				} catch (NotANumber error) {
+					return error.value;
+				}
+			}
+
+			return compareNumbers(expr);
+		}
+
 		Object left = evaluate(expr.left);
 		Object right = evaluate(expr.right);
 
+		// Likewise, + on strings skips the generic operand checks below until
+		// the guard fails once.
+		if (expr.specialization == Specialization.STRING) {
+			if (isString(left) && isString(right)) return concatenate(left, right);
+			expr.specialization = Specialization.GENERIC;
+		} else if (expr.specialization == null) {
+			expr.specialization = specializeBinary(expr.operator.type, left, right);
+		}
+
+		return binary(expr, left, right);
+	}
+
+	private Object binary(Expr.Binary expr, Object left, Object right) {
 		switch (expr.operator.type) {
 			case MINUS:
 				checkNumberOperands(expr.operator, left, right);
@@ -140,9 +213,7 @@ class Interpreter implements Expr.Visitor<Object>,
 				checkNumberOperands(expr.operator, left, right);
 				return (double)left * (double)right;
 			case PLUS:
-				if (left instanceof String || right instanceof String) {
-					return stringify(left) + stringify(right);
-				}
+				if (isString(left) || isString(right)) return concatenate(left, right);
 
 				if (left instanceof Double && right instanceof Double) {
 					return (double)left + (double)right;
@@ -173,49 +244,373 @@ class Interpreter implements Expr.Visitor<Object>,
 		return null;
 	}
 
+	private static Specialization specializeBinary(TokenType operator, Object left, Object right) {
+		if (operator == TokenType.COMMA) return Specialization.GENERIC;
+
+		if (left instanceof Double && right instanceof Double) {
+			return Specialization.NUMBER;
+		}
+
+		if (operator == TokenType.PLUS && isString(left) && isString(right)) {
+			return Specialization.STRING;
+		}
+
+		return Specialization.GENERIC;
+	}
+
+	private static boolean isArithmetic(TokenType operator) {
+		return operator == TokenType.MINUS || operator == TokenType.PLUS ||
+				operator == TokenType.STAR || operator == TokenType.SLASH;
+	}
+
+	// Evaluates an expression that has so far produced numbers without boxing
+	// any intermediate result. Throws NotANumber with the value it produced
+	// instead when that is not a number.
+	double evaluateNumber(Expr expr) {
+		if (expr instanceof Expr.Literal) {
+			return number(((Expr.Literal)expr).value);
+		}
+
+		if (expr instanceof Expr.Grouping) {
+			return evaluateNumber(((Expr.Grouping)expr).expression);
+		}
+
+		if (expr instanceof Expr.Variable) {
+			Resolver.Slot slot = ((Expr.Variable)expr).slot;
+			if (slot != null && slot.isPlainLocal()) return environment.getNumberAt(slot.index);
+		}
+
+		if (expr instanceof Expr.Unary &&
+				((Expr.Unary)expr).specialization == Specialization.NUMBER) {
+			Expr.Unary unary = (Expr.Unary)expr;
+			try {
+				return -evaluateNumber(unary.right);
+			} catch (NotANumber error) {
+				unary.specialization = Specialization.GENERIC;
+				return number(unary(unary, error.value));
+			}
+		}
+
+		if (expr instanceof Expr.Binary &&
+				((Expr.Binary)expr).specialization == Specialization.NUMBER &&
+				isArithmetic(((Expr.Binary)expr).operator.type)) {
+			Expr.Binary binary = (Expr.Binary)expr;
+
+			double left;
+			try {
+				left = evaluateNumber(binary.left);
+			} catch (NotANumber error) {
+				binary.specialization = Specialization.GENERIC;
+				return number(binary(binary, error.value, evaluate(binary.right)));
+			}
+
+			double right;
+			try {
+				right = evaluateNumber(binary.right);
+			} catch (NotANumber error) {
+				binary.specialization = Specialization.GENERIC;
+				return number(binary(binary, left, error.value));
+			}
+
+			return arithmetic(binary.operator, left, right);
+		}
+
+		return number(evaluate(expr));
+	}
+
+	private static double number(Object value) {
+		if (value instanceof Double) return (double)value;
+		throw new NotANumber(value);
+	}
+
+	// Whether evaluateNumber() can produce this expression's value unboxed.
+	private static boolean producesNumber(Expr expr) {
+		if (expr instanceof Expr.Unary) {
+			return ((Expr.Unary)expr).specialization == Specialization.NUMBER;
+		}
+
+		return expr instanceof Expr.Binary &&
+				((Expr.Binary)expr).specialization == Specialization.NUMBER &&
+				isArithmetic(((Expr.Binary)expr).operator.type);
+	}
+
+	private Object compareNumbers(Expr.Binary expr) {
+		double left;
+		try {
+			left = evaluateNumber(expr.left);
+		} catch (NotANumber error) {
+			expr.specialization = Specialization.GENERIC;
+			return binary(expr, error.value, evaluate(expr.right));
+		}
+
+		double right;
+		try {
+			right = evaluateNumber(expr.right);
+		} catch (NotANumber error) {
+			expr.specialization = Specialization.GENERIC;
+			return binary(expr, left, error.value);
+		}
+
+		switch (expr.operator.type) {
+			case GREATER: return left > right;
+			case GREATER_EQUAL: return left >= right;
+			case LESS: return left < right;
+			case LESS_EQUAL: return left <= right;
+			// Same as Double.equals(), which isEqual() uses.
+			case BANG_EQUAL: return Double.compare(left, right) != 0;
+			case EQUAL_EQUAL: return Double.compare(left, right) == 0;
+		}
+
+		// Unreachable.
+		return null;
+	}
+
+	private static double arithmetic(Token operator, double left, double right) {
+		switch (operator.type) {
+			case MINUS: return left - right;
+			case SLASH:
+				if (right == 0) throw new RuntimeError(operator, "Cannot divide by zero.");
+				return left / right;
+			case STAR: return left * right;
+			case PLUS: return left + right;
+		}
+
+		// Unreachable.
+		return 0;
+	}
+
 	@Override
 	public Object visitCallExpr(Expr.Call expr) {
+		return call(expr, false);
+	}
+
+	// In tail position, a call to a Lox function isn't made here; it comes
+	// back as a TailCall for LoxFunction to make once the function doing the
+	// calling has returned.
+	private Object call(Expr.Call expr, boolean isTail) {
+		// A method called straight off an instance gets the instance as its
+		// receiver instead of being bound first.
+		if (expr.callee instanceof Expr.Get) {
+			Expr.Get get = (Expr.Get)expr.callee;
+			Object object = evaluate(get.object);
+			if (!(object instanceof LoxInstance)) {
+				throw new RuntimeError(get.name, "Only instances have properties.");
+			}
+
+			LoxInstance instance = (LoxInstance)object;
+			LoxFunction method = instance.lookUpMethod(get.name, get.cache);
+			if (method != null) {
+				if (isTail) return tailInvoke(method, instance, evaluateArguments(expr), expr.paren);
+				return makeCall(expr, null, method, instance);
+			}
+
+			Object field = instance.get(get.name, get.cache);
+			if (isTail && field instanceof LoxFunction) {
+				return tailCall(field, evaluateArguments(expr), expr.paren);
+			}
+			return makeCall(expr, field, null, null);
+		}
+
 		Object callee = evaluate(expr.callee);
+		if (expr.intrinsic != null && callee == expr.intrinsic) return callIntrinsic(expr);
+		if (isTail && callee instanceof LoxFunction) {
+			return tailCall(callee, evaluateArguments(expr), expr.paren);
+		}
+		return makeCall(expr, callee, null, null);
+	}
+
+	// Evaluates the arguments and calls method on receiver, or callee if
+	// there's no method. Calls with up to three arguments use the callee's
+	// fixed-arity entry points, so the arguments never need an array.
+	private Object makeCall(Expr.Call expr, Object callee, LoxFunction method, LoxInstance receiver) {
+		List<Expr> arguments = expr.arguments;
+		Token paren = expr.paren;
+		switch (arguments.size()) {
+			case 0:
+				if (method != null) return invoke(method, receiver, paren);
+				return call(callee, paren);
+			case 1: {
+				Object a = evaluate(arguments.get(0));
+				if (method != null) return invoke(method, receiver, paren, a);
+				return call(callee, paren, a);
+			}
+			case 2: {
+				Object a = evaluate(arguments.get(0));
+				Object b = evaluate(arguments.get(1));
+				if (method != null) return invoke(method, receiver, paren, a, b);
+				return call(callee, paren, a, b);
+			}
+			case 3: {
+				Object a = evaluate(arguments.get(0));
+				Object b = evaluate(arguments.get(1));
+				Object c = evaluate(arguments.get(2));
+				if (method != null) return invoke(method, receiver, paren, a, b, c);
+				return call(callee, paren, a, b, c);
+			}
+			default: {
+				Object[] values = evaluateArguments(expr);
+				if (method != null) return invoke(method, receiver, values, paren);
+				return call(callee, values, paren);
+			}
+		}
+	}
 
-		List<Object> arguments = new ArrayList<>();
-		for (Expr argument : expr.arguments) {
-			arguments.add(evaluate(argument));
+	// A call the resolver found names a native, with as many arguments as
+	// the native takes.
+	private Object callIntrinsic(Expr.Call expr) {
+		List<Expr> arguments = expr.arguments;
+		switch (arguments.size()) {
+			case 0: return expr.intrinsic.apply(expr.paren, null, null, null);
+			case 1: return expr.intrinsic.apply(expr.paren, evaluate(arguments.get(0)), null, null);
+			case 2: {
+				Object a = evaluate(arguments.get(0));
+				Object b = evaluate(arguments.get(1));
+				return expr.intrinsic.apply(expr.paren, a, b, null);
+			}
+			default: {
+				Object a = evaluate(arguments.get(0));
+				Object b = evaluate(arguments.get(1));
+				Object c = evaluate(arguments.get(2));
+				return expr.intrinsic.apply(expr.paren, a, b, c);
+			}
+		}
+	}
+
+	private Object[] evaluateArguments(Expr.Call expr) {
+		Object[] arguments = new Object[expr.arguments.size()];
+		for (int i = 0; i < arguments.length; i++) {
+			arguments[i] = evaluate(expr.arguments.get(i));
 		}
 
+		return arguments;
+	}
+
+	// Natives are called directly rather than as LoxCallables.
+
+	Object call(Object callee, Object[] arguments, Token paren) {
+		if (callee instanceof Native) return ((Native)callee).call(paren, arguments);
+		return callable(callee, arguments.length, paren).call(this, arguments);
+	}
+
+	Object call(Object callee, Token paren) {
+		if (callee instanceof Native) return ((Native)callee).call(paren);
+		return callable(callee, 0, paren).call(this);
+	}
+
+	Object call(Object callee, Token paren, Object a) {
+		if (callee instanceof Native) return ((Native)callee).call(paren, a);
+		return callable(callee, 1, paren).call(this, a);
+	}
+
+	Object call(Object callee, Token paren, Object a, Object b) {
+		if (callee instanceof Native) return ((Native)callee).call(paren, a, b);
+		return callable(callee, 2, paren).call(this, a, b);
+	}
+
+	Object call(Object callee, Token paren, Object a, Object b, Object c) {
+		if (callee instanceof Native) return ((Native)callee).call(paren, a, b, c);
+		return callable(callee, 3, paren).call(this, a, b, c);
+	}
+
+	private static LoxCallable callable(Object callee, int argumentCount, Token paren) {
 		if (!(callee instanceof LoxCallable)) {
-			throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+			throw new RuntimeError(paren, "Can only call functions and classes.");
 		}
 
 		LoxCallable function = (LoxCallable)callee;
-		if (arguments.size() != function.arity()) {
-			throw new RuntimeError(expr.paren, "Expected " +
+		checkArity(function, argumentCount, paren);
+		return function;
+	}
+
+	Object invoke(LoxFunction method, LoxInstance receiver, Object[] arguments, Token paren) {
+		checkArity(method, arguments.length, paren);
+		return method.invoke(this, receiver, arguments);
+	}
+
+	Object invoke(LoxFunction method, LoxInstance receiver, Token paren) {
+		checkArity(method, 0, paren);
+		return method.invoke(this, receiver);
+	}
+
+	Object invoke(LoxFunction method, LoxInstance receiver, Token paren, Object a) {
+		checkArity(method, 1, paren);
+		return method.invoke(this, receiver, a);
+	}
+
+	Object invoke(LoxFunction method, LoxInstance receiver, Token paren, Object a, Object b) {
+		checkArity(method, 2, paren);
+		return method.invoke(this, receiver, a, b);
+	}
+
+	Object invoke(LoxFunction method, LoxInstance receiver, Token paren, Object a, Object b, Object c) {
+		checkArity(method, 3, paren);
+		return method.invoke(this, receiver, a, b, c);
+	}
+
+	Object tailCall(Object callee, Object[] arguments, Token paren) {
+		if (!(callee instanceof LoxFunction)) return call(callee, arguments, paren);
+
+		LoxFunction function = (LoxFunction)callee;
+		checkArity(function, arguments.length, paren);
+		return function.tailCall(arguments);
+	}
+
+	Object tailInvoke(LoxFunction method, LoxInstance receiver, Object[] arguments, Token paren) {
+		checkArity(method, arguments.length, paren);
+		return new LoxFunction.TailCall(method, receiver, arguments);
+	}
+
+	static void checkArity(LoxCallable function, int argumentCount, Token paren) {
+		if (argumentCount != function.arity()) {
+			throw new RuntimeError(paren, "Expected " +
 				function.arity() + " arguments but got " +
-				arguments.size() + ".");
+				argumentCount + ".");
 		}
-
-		return function.call(this, arguments);
 	}
 
 	@Override
 	public Object visitGetExpr(Expr.Get expr) {
 		Object object = evaluate(expr.object);
 		if (object instanceof LoxInstance) {
-			return ((LoxInstance) object).get(expr.name);
+			return ((LoxInstance) object).get(expr.name, expr.cache);
 		}
 
 		throw new RuntimeError(expr.name, "Only instances have properties.");
 	}
 
 	@Override
-	public Void visitExpressionStmt(Stmt.Expression stmt) {
+	public Return visitExpressionStmt(Stmt.Expression stmt) {
+		// A number assigned to a local in statement position is never needed
+		// as an object, so it can be stored without boxing.
+		if (stmt.expression instanceof Expr.Assign) {
+			Expr.Assign assign = (Expr.Assign)stmt.expression;
+			Resolver.Slot slot = assign.slot;
+			if (slot != null && slot.isPlainLocal() && producesNumber(assign.value)) {
+				try {
+					environment.assignNumberAt(slot.index, evaluateNumber(assign.value));
+				} catch (NotANumber error) {
+					environment.assignAt(slot.index, error.value);
+				}
+				return null;
+			}
+		}
+
 		evaluate(stmt.expression);
 		return null;
 	}
 
 	@Override
-	public Void visitFunctionStmt(Stmt.Function stmt) {
-		LoxFunction function = new LoxFunction(stmt, environment, false);
-		environment.define(stmt.name.lexeme, function);
+	public Return visitFunctionStmt(Stmt.Function stmt) {
+		if (!stmt.isBoxed) {
+			environment.define(stmt.name.lexeme,
+					new LoxFunction(stmt, environment.capture(stmt.upvalues), false));
+			return null;
+		}
+
+		// The function captures its own name, so the box must exist first.
+		Environment.Box box = new Environment.Box(null);
+		environment.define(stmt.name.lexeme, box);
+		box.value = new LoxFunction(stmt, environment.capture(stmt.upvalues), false);
 		return null;
 	}
 
@@ -228,34 +623,45 @@ class Interpreter implements Expr.Visitor<Object>,
 	}
 
 	@Override
-	public Void visitIfStmt(Stmt.If stmt) {
+	public Return visitIfStmt(Stmt.If stmt) {
 		if (isTruthy(evaluate(stmt.condition))) {
-			execute(stmt.thenBranch);
+			return execute(stmt.thenBranch);
 		} else if (stmt.elseBranch != null) {
-			execute(stmt.elseBranch);
+			return execute(stmt.elseBranch);
 		}
 		return null;
 	}
 
 	@Override
-	public Void visitPrintStmt(Stmt.Print stmt) {
-		Object value = evaluate(stmt.expression);
-		System.out.println(stringify(value));
+	public Return visitPrintStmt(Stmt.Print stmt) {
+		print(evaluate(stmt.expression));
 		return null;
 	}
 
 	@Override
-	public Void visitReturnStmt(Stmt.Return stmt) {
-		Object value = null;
-		if (stmt.value != null) value = evaluate(stmt.value);
-
-		throw new Return(value);
+	public Return visitReturnStmt(Stmt.Return stmt) {
+		if (stmt.isTailCall) return new Return(call((Expr.Call)stmt.value, true));
+		if (stmt.value == null) return Return.NIL;
+		return new Return(evaluate(stmt.value));
 	}
 
 	@Override
-	public Void visitVarStmt(Stmt.Var stmt) {
+	public Return visitVarStmt(Stmt.Var stmt) {
 		Object value = null;
-		if (stmt.initializer != null) {
+		if (stmt.isBoxed) {
+			if (stmt.initializer != null) value = evaluate(stmt.initializer);
+			environment.define(stmt.name.lexeme, new Environment.Box(value));
+			return null;
+		}
+
+		if (stmt.initializer != null && producesNumber(stmt.initializer)) {
+			try {
+				environment.defineNumber(stmt.name.lexeme, evaluateNumber(stmt.initializer));
+				return null;
+			} catch (NotANumber error) {
+				value = error.value;
+			}
+		} else if (stmt.initializer != null) {
 			value = evaluate(stmt.initializer);
 		}
 
@@ -264,22 +670,42 @@ class Interpreter implements Expr.Visitor<Object>,
 	}
 
 	@Override
-	public Void visitWhileStmt(Stmt.While stmt) {
+	public Return visitWhileStmt(Stmt.While stmt) {
+		if (stmt.compiled != null) return runCompiled(stmt, environment);
+
 		while (isTruthy(evaluate(stmt.condition))) {
-			execute(stmt.body);
+			Return result = execute(stmt.body);
+			if (result != null) return result;
+			if (isHot(stmt, environment)) return runCompiled(stmt, environment);
 		}
 		return null;
 	}
 
+	// Counts one more time round a loop running in frame. Like a function's
+	// calls, the count stops at the threshold, where the loop is compiled.
+	boolean isHot(Stmt.While stmt, Environment frame) {
+		if (stmt.iterations < Jit.THRESHOLD && ++stmt.iterations == Jit.THRESHOLD) {
+			stmt.compiled = Jit.compile(stmt, frame == globals ? 0 : frame.mark());
+			return stmt.compiled != null;
+		}
+
+		return false;
+	}
+
+	// Runs a compiled loop from its condition on.
+	Return runCompiled(Stmt.While stmt, Environment frame) {
+		return stmt.compiled.run(this, frame.upvalues, frame);
+	}
+
 	@Override
 	public Object visitAssignExpr(Expr.Assign expr) {
 		Object value = evaluate(expr.value);
 
-		Integer distance = locals.get(expr);
-		if (distance != null) {
-			environment.assignAt(distance, expr.name, value);
+		Resolver.Slot slot = expr.slot;
+		if (slot != null) {
+			environment.assign(slot, value);
 		} else {
-			globals.assign(expr.name, value);
+			globals.assignGlobal(expr.global, expr.name, value);
 		}
 
 		return value;
@@ -289,35 +715,65 @@ class Interpreter implements Expr.Visitor<Object>,
 		return expr.accept(this);
 	}
 
-	public void execute(Stmt stmt) {
-		stmt.accept(this);
+	Environment pushFrame(Object[] upvalues, int size) {
+		if (frameCount == frames.length) frames = Arrays.copyOf(frames, frameCount * 2);
+
+		Environment frame = frames[frameCount];
+		if (frame == null) {
+			frame = new Environment(upvalues, size);
+			frames[frameCount] = frame;
+		} else {
+			frame.reset(upvalues, size);
+		}
+
+		frameCount++;
+		return frame;
 	}
 
-	void resolve(Expr expr, int depth) {
-		locals.put(expr, depth);
+	void popFrame() {
+		frames[--frameCount].clear();
 	}
 
-	void executeBlock(List<Stmt> statements, Environment environment) {
+	// Returns null unless the statement ran a return.
+	public Return execute(Stmt stmt) {
+		return stmt.accept(this);
+	}
+
+	Return executeBlock(List<Stmt> statements, Environment environment) {
 		Environment previous = this.environment;
 		try {
 			this.environment = environment;
 
 			for (Stmt statement : statements) {
-				execute(statement);
+				Return result = execute(statement);
+				if (result != null) return result;
 			}
+			return null;
 		} finally {
 			this.environment = previous;
 		}
 	}
 
 	@Override
-	public Void visitBlockStmt(Stmt.Block stmt) {
-		executeBlock(stmt.statements, new Environment(environment));
-		return null;
+	public Return visitBlockStmt(Stmt.Block stmt) {
+		if (!stmt.isFlattened) {
+			try {
+				return executeBlock(stmt.statements, pushFrame(Environment.NO_UPVALUES, stmt.frameSize));
+			} finally {
+				popFrame();
+			}
+		}
+
+		int mark = environment.mark();
+		try {
+			return executeBlock(stmt.statements, environment);
+		} finally {
+			environment.release(mark);
+		}
 	}
 
 	@Override
-	public Void visitClassStmt(Stmt.Class stmt) {
+	public Return visitClassStmt(Stmt.Class stmt) {
 		Object superclass = null;
 		if (stmt.superclass != null) {
 			superclass = evaluate(stmt.superclass);
@@ -326,41 +782,74 @@ class Interpreter implements Expr.Visitor<Object>,
 			}
 		}
 
-		environment.define(stmt.name.lexeme, null);
+		// The name comes before "super" in the frame, and methods that
+		// capture it capture its box.
+		Environment.Box box = stmt.isBoxed ? new Environment.Box(null) : null;
+		int slot = environment.define(stmt.name.lexeme, box);
 
-		if (stmt.superclass != null) {
-			environment = new Environment(environment);
-			environment.define("super", superclass);
+		// At the top level "super" gets a frame of its own.
+		Environment frame = environment;
+		int mark = environment.mark();
+		if (superclass != null && environment == globals) {
+			frame = pushFrame(Environment.NO_UPVALUES, 1);
 		}
 
 		Map<String, LoxFunction> methods = new HashMap<>();
-		for (Stmt.Function method : stmt.methods) {
-			LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-			methods.put(method.name.lexeme, function);
+		try {
+			if (superclass != null) frame.define("super", superclass);
+
+			for (Stmt.Function method : stmt.methods) {
+				LoxFunction function = new LoxFunction(method, frame.capture(method.upvalues),
+						method.name.lexeme.equals("init"));
+				methods.put(method.name.lexeme, function);
+			}
+		} finally {
+			if (frame != environment) {
+				popFrame();
+			} else {
+				environment.release(mark);
+			}
 		}
 
 		LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods);
-
-		if (superclass != null) {
-			environment = environment.enclosing;
+		if (box != null) {
+			box.value = klass;
+		} else {
+			environment.assignAt(slot, klass);
 		}
-		environment.assign(stmt.name, klass);
 		return null;
 	}
 
-	private boolean isTruthy(Object object) {
+	static boolean isTruthy(Object object) {
 		if (object == null) return false;
 		if (object instanceof Boolean) return (boolean)object;
 		return true;
 	}
 
-	private boolean isEqual(Object a, Object b) {
+	static boolean isString(Object value) {
+		return value instanceof String || value instanceof Rope;
+	}
+
+	// The + operator when either operand is a string.
+	Object concatenate(Object left, Object right) {
+		if (left instanceof Rope) return ((Rope)left).append(stringify(right));
+		return Rope.concat(stringify(left), stringify(right));
+	}
+
+	static boolean isEqual(Object a, Object b) {
+		if (a instanceof Rope) a = a.toString();
+		if (b instanceof Rope) b = b.toString();
+
 		if (a == null && b == null) return true;
 		if (a == null) return false;
 
 		return a.equals(b);
 	}
 
+	void print(Object value) {
+		output.println(stringify(value));
+	}
+
 	public String stringify(Object object) {
 		if (object == null) return "nil";
 
@@ -375,12 +864,12 @@ class Interpreter implements Expr.Visitor<Object>,
 		return object.toString();
 	}
 
-	private void checkNumberOperand(Token operator, Object operand) {
+	static void checkNumberOperand(Token operator, Object operand) {
 		if (operand instanceof Double) return;
 		throw new RuntimeError(operator, "Operand must be a number.");
 	}
 
-	private void checkNumberOperands(Token operator, Object left, Object right) {
+	static void checkNumberOperands(Token operator, Object left, Object right) {
 		if (left instanceof Double && right instanceof Double) return;
 
 		throw new RuntimeError(operator, "Operands must be numbers.");
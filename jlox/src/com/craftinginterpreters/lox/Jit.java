@@ -0,0 +1,1039 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.ClassFile.*;
+
+// Compiles the body of a hot function to a JVM method on a hidden class so
+// HotSpot can inline and register allocate it like any Java code. Locals of
+// the function become JVM locals, and arithmetic and comparisons become JVM
+// double instructions on unboxed operands; upvalues, globals and everything
+// involving objects go through the small static helpers at the bottom of
+// this class, which the JIT inlines into the generated code.
+//
+// A loop that runs long in a single call, or outside any function, is
+// compiled on its own the same way, and picks up from the frame the
+// interpreter was running it in.
+//
+// Functions and loops that declare nested functions or classes are left to
+// the interpreter, since their locals may be captured.
+class Jit {
+	// Calls of a function, or times round a loop, before it's compiled.
+	static final int THRESHOLD = 1000;
+	static boolean enabled = true;
+
+	interface Code {
+		Object run(Interpreter interpreter, Object[] upvalues, LoxInstance receiver, Object[] arguments);
+	}
+
+	// Runs the rest of a loop in frame, whose locals it loads on entry and
+	// stores back on exit. Returns what a return statement in the loop
+	// returned, or null when the loop ends.
+	interface Loop {
+		Return run(Interpreter interpreter, Object[] upvalues, Environment frame);
+	}
+
+	private static class Unsupported extends RuntimeException {
+		Unsupported() {
+			super(null, null, false, false);
+		}
+	}
+
+	static Code compile(Stmt.Function declaration) {
+		if (!enabled) return null;
+
+		FunctionCompiler compiler = new FunctionCompiler("Jit_" + declaration.name.lexeme, JIT + "$Code");
+		try {
+			return (Code)load(compiler.compile(declaration), compiler);
+		} catch (Unsupported | TooLarge error) {
+			return null;
+		}
+	}
+
+	// The frame holds frameSize locals when the loop starts.
+	static Loop compile(Stmt.While loop, int frameSize) {
+		if (!enabled) return null;
+
+		FunctionCompiler compiler = new FunctionCompiler("Jit_loop", JIT + "$Loop");
+		try {
+			return (Loop)load(compiler.compile(loop, frameSize), compiler);
+		} catch (Unsupported | TooLarge error) {
+			return null;
+		}
+	}
+
+	private static Object load(byte[] bytes, FunctionCompiler compiler) {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+					MethodType.methodType(void.class, Object[].class));
+			return constructor.invoke(compiler.constants.toArray());
+		} catch (Throwable error) {
+			// Whatever the JVM refuses to load keeps running in the interpreter.
+			return null;
+		}
+	}
+
+	private static final String LOX = "com/craftinginterpreters/lox/";
+	private static final String JIT = LOX + "Jit";
+	private static final String OBJECT = "Ljava/lang/Object;";
+	private static final String TOKEN = "L" + LOX + "Token;";
+	private static final String INTERPRETER = "L" + LOX + "Interpreter;";
+	private static final String BOX = LOX + "Environment$Box";
+	private static final String ARRAY = "[" + OBJECT;
+	private static final String INSTANCE = "L" + LOX + "LoxInstance;";
+	private static final String FUNCTION = "L" + LOX + "LoxFunction;";
+	private static final String CACHE = "L" + LOX + "Shape$Cache;";
+	private static final String NATIVE = "L" + LOX + "Native;";
+	private static final String ENVIRONMENT = LOX + "Environment";
+	private static final String RESULT = "L" + LOX + "Return;";
+	private static final String DOUBLE = "java/lang/Double";
+
+	// Local 0 is the generated object, 1-4 are run()'s parameters.
+	private static final int INTERPRETER_LOCAL = 1;
+	private static final int UPVALUES_LOCAL = 2;
+	private static final int RECEIVER_LOCAL = 3;
+	private static final int ARGUMENTS_LOCAL = 4;
+	// A loop's run() takes the frame instead of the last two.
+	private static final int FRAME_LOCAL = 3;
+
+	private static class FunctionCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+		private final String className;
+		private final ClassFile file;
+		private ClassFile.Method code;
+		private boolean isLoop = false;
+
+		final List<Object> constants = new ArrayList<>();
+		private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+
+		// JVM local for each slot of the function's frame.
+		private final List<Integer> locals = new ArrayList<>();
+		private int nextLocal = ARGUMENTS_LOCAL + 1;
+
+		FunctionCompiler(String name, String interfaceName) {
+			this.className = LOX + name;
+			this.file = new ClassFile(className, "java/lang/Object", interfaceName);
+		}
+
+		byte[] compile(Stmt.Function declaration) {
+			constructor();
+			code = file.method(ACC_PUBLIC, "run",
+					"(" + INTERPRETER + ARRAY + INSTANCE + ARRAY + ")" + OBJECT, ARGUMENTS_LOCAL + 1);
+
+			if (declaration.isMethod) locals.add(RECEIVER_LOCAL);
+			for (int i = 0; i < declaration.params.size(); i++) {
+				code.load(ARGUMENTS_LOCAL);
+				code.pushInt(i);
+				code.op(AALOAD, -1);
+				int local = nextLocal++;
+				code.store(local);
+				locals.add(local);
+			}
+
+			for (Stmt statement : declaration.body) {
+				compile(statement);
+			}
+			code.op(ACONST_NULL, 1);
+			code.op(ARETURN, -1);
+			code.end();
+
+			return file.toByteArray();
+		}
+
+		byte[] compile(Stmt.While loop, int frameSize) {
+			isLoop = true;
+			constructor();
+			code = file.method(ACC_PUBLIC, "run",
+					"(" + INTERPRETER + ARRAY + "L" + ENVIRONMENT + ";)" + RESULT, FRAME_LOCAL + 1);
+
+			for (int i = 0; i < frameSize; i++) {
+				code.load(FRAME_LOCAL);
+				code.pushInt(i);
+				code.invoke(INVOKEVIRTUAL, file.methodRef(ENVIRONMENT, "getAt", "(I)" + OBJECT), 1, true);
+				int local = nextLocal++;
+				code.store(local);
+				locals.add(local);
+			}
+
+			compile(loop);
+
+			for (int i = 0; i < frameSize; i++) {
+				code.load(FRAME_LOCAL);
+				code.pushInt(i);
+				code.load(locals.get(i));
+				code.invoke(INVOKEVIRTUAL, file.methodRef(ENVIRONMENT, "assignAt", "(I" + OBJECT + ")V"), 2, false);
+			}
+			code.op(ACONST_NULL, 1);
+			code.op(ARETURN, -1);
+			code.end();
+
+			return file.toByteArray();
+		}
+
+		private void constructor() {
+			file.field(ACC_PRIVATE | ACC_FINAL, "k", ARRAY);
+
+			code = file.method(ACC_PUBLIC, "<init>", "(" + ARRAY + ")V", 2);
+			code.load(0);
+			code.invoke(INVOKESPECIAL, file.methodRef("java/lang/Object", "<init>", "()V"), 0, false);
+			code.load(0);
+			code.load(1);
+			code.op(PUTFIELD, file.fieldRef(className, "k", ARRAY), -2);
+			code.op(RETURN, 0);
+			code.end();
+		}
+
+		private void compile(Stmt stmt) {
+			stmt.accept(this);
+		}
+
+		private void compile(Expr expr) {
+			expr.accept(this);
+		}
+
+		private void loadConstant(Object value, String castTo) {
+			Integer index = constantIndexes.get(value);
+			if (index == null) {
+				index = constants.size();
+				constants.add(value);
+				constantIndexes.put(value, index);
+			}
+
+			code.load(0);
+			code.op(GETFIELD, file.fieldRef(className, "k", ARRAY), 0);
+			code.pushInt(index);
+			code.op(AALOAD, -1);
+			if (castTo != null) code.op(CHECKCAST, file.classRef(castTo), 0);
+		}
+
+		private void loadToken(Token token) {
+			loadConstant(token, LOX + "Token");
+		}
+
+		private void helper(String name, String descriptor, int argumentSlots, boolean returnsValue) {
+			code.invoke(INVOKESTATIC, file.methodRef(JIT, name, descriptor), argumentSlots, returnsValue);
+		}
+
+		private void doubleHelper(String name, String descriptor, int argumentSlots) {
+			code.invoke(INVOKESTATIC, file.methodRef(JIT, name, descriptor), argumentSlots, 2);
+		}
+
+		private void boxNumber() {
+			code.invoke(INVOKESTATIC, file.methodRef(DOUBLE, "valueOf", "(D)L" + DOUBLE + ";"), 2, 1);
+		}
+
+		private void unboxNumber() {
+			code.op(CHECKCAST, file.classRef(DOUBLE), 0);
+			code.invoke(INVOKEVIRTUAL, file.methodRef(DOUBLE, "doubleValue", "()D"), 0, 2);
+		}
+
+		private void pushBoolean(boolean value) {
+			String field = value ? "TRUE" : "FALSE";
+			code.op(GETSTATIC, file.fieldRef("java/lang/Boolean", field, "Ljava/lang/Boolean;"), 1);
+		}
+
+		private int temp(int slots) {
+			int local = nextLocal;
+			nextLocal += slots;
+			return local;
+		}
+
+		// Leaves nothing on the stack; jumps to target when the condition's
+		// truthiness equals jumpIf.
+		private void branch(Expr condition, boolean jumpIf, Label target) {
+			if (condition instanceof Expr.Grouping) {
+				branch(((Expr.Grouping)condition).expression, jumpIf, target);
+				return;
+			}
+
+			if (condition instanceof Expr.Unary &&
+					((Expr.Unary)condition).operator.type == TokenType.BANG) {
+				branch(((Expr.Unary)condition).right, !jumpIf, target);
+				return;
+			}
+
+			if (condition instanceof Expr.Literal) {
+				if (Interpreter.isTruthy(((Expr.Literal)condition).value) == jumpIf) {
+					code.jump(GOTO, target);
+				}
+				return;
+			}
+
+			if (condition instanceof Expr.Binary) {
+				Expr.Binary binary = (Expr.Binary)condition;
+				switch (binary.operator.type) {
+					case GREATER:
+					case GREATER_EQUAL:
+					case LESS:
+					case LESS_EQUAL:
+						compare(binary, jumpIf, target);
+						return;
+					case EQUAL_EQUAL:
+					case BANG_EQUAL:
+						compile(binary.left);
+						compile(binary.right);
+						helper("isEqual", "(" + OBJECT + OBJECT + ")Z", 2, true);
+						boolean equalJumps = jumpIf == (binary.operator.type == TokenType.EQUAL_EQUAL);
+						code.jump(equalJumps ? IFNE : IFEQ, target);
+						return;
+				}
+			}
+
+			compile(condition);
+			helper("isTruthy", "(" + OBJECT + ")Z", 1, true);
+			code.jump(jumpIf ? IFNE : IFEQ, target);
+		}
+
+		// NaN compares false every way, which DCMPG gives < and <= by
+		// making it greater, and DCMPL gives > and >= by making it less.
+		private void compare(Expr.Binary expr, boolean jumpIf, Label target) {
+			operands(expr);
+
+			int opcode;
+			switch (expr.operator.type) {
+				case GREATER:
+					code.op(DCMPL, -3);
+					opcode = jumpIf ? IFGT : IFLE;
+					break;
+				case GREATER_EQUAL:
+					code.op(DCMPL, -3);
+					opcode = jumpIf ? IFGE : IFLT;
+					break;
+				case LESS:
+					code.op(DCMPG, -3);
+					opcode = jumpIf ? IFLT : IFGE;
+					break;
+				default:
+					code.op(DCMPG, -3);
+					opcode = jumpIf ? IFLE : IFGT;
+					break;
+			}
+			code.jump(opcode, target);
+		}
+
+		// Whether an expression gives a number whenever it doesn't fail.
+		// Those are compiled by number() to leave an unboxed double, which is
+		// only boxed when it's stored or passed on.
+		private static boolean isNumber(Expr expr) {
+			if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Double;
+			if (expr instanceof Expr.Grouping) return isNumber(((Expr.Grouping)expr).expression);
+			if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+
+			if (expr instanceof Expr.Binary) {
+				Expr.Binary binary = (Expr.Binary)expr;
+				switch (binary.operator.type) {
+					case MINUS:
+					case STAR:
+					case SLASH:
+						return true;
+					case PLUS:
+						return isNumber(binary.left) && isNumber(binary.right);
+				}
+			}
+
+			return false;
+		}
+
+		private void number(Expr expr) {
+			if (expr instanceof Expr.Literal) {
+				code.pushDouble((double)((Expr.Literal)expr).value);
+				return;
+			}
+
+			if (expr instanceof Expr.Grouping) {
+				number(((Expr.Grouping)expr).expression);
+				return;
+			}
+
+			if (expr instanceof Expr.Unary) {
+				Expr.Unary unary = (Expr.Unary)expr;
+				if (isNumber(unary.right)) {
+					number(unary.right);
+				} else {
+					compile(unary.right);
+					loadToken(unary.operator);
+					doubleHelper("unaryOperand", "(" + OBJECT + TOKEN + ")D", 2);
+				}
+				code.op(DNEG, 0);
+				return;
+			}
+
+			Expr.Binary binary = (Expr.Binary)expr;
+			operands(binary);
+			switch (binary.operator.type) {
+				case PLUS: code.op(DADD, -2); break;
+				case MINUS: code.op(DSUB, -2); break;
+				case STAR: code.op(DMUL, -2); break;
+				default:
+					loadToken(binary.operator);
+					doubleHelper("divisor", "(D" + TOKEN + ")D", 3);
+					code.op(DDIV, -2);
+					break;
+			}
+		}
+
+		// Leaves both operands of an arithmetic or comparison operator as
+		// doubles. As in the interpreter, neither is checked until both have
+		// been evaluated, and either failing gives the same error.
+		private void operands(Expr.Binary expr) {
+			boolean leftIsNumber = isNumber(expr.left);
+			boolean rightIsNumber = isNumber(expr.right);
+			if (leftIsNumber) number(expr.left); else compile(expr.left);
+			if (rightIsNumber) number(expr.right); else compile(expr.right);
+
+			if (!rightIsNumber) binaryOperand(expr.operator);
+			if (!leftIsNumber) {
+				int right = temp(2);
+				code.storeDouble(right);
+				binaryOperand(expr.operator);
+				code.loadDouble(right);
+			}
+		}
+
+		private void binaryOperand(Token operator) {
+			loadToken(operator);
+			doubleHelper("binaryOperand", "(" + OBJECT + TOKEN + ")D", 2);
+		}
+
+		// + at a site that hasn't seen strings adds in place when both
+		// operands are numbers, and leaves anything else to add().
+		private void addNumbers(Expr.Binary expr) {
+			Label other = new Label();
+			Label end = new Label();
+			int left = temp(1);
+			int right = temp(1);
+
+			compile(expr.left);
+			compile(expr.right);
+			code.store(right);
+			code.store(left);
+
+			code.load(left);
+			code.op(INSTANCEOF, file.classRef(DOUBLE), 0);
+			code.jump(IFEQ, other);
+			code.load(right);
+			code.op(INSTANCEOF, file.classRef(DOUBLE), 0);
+			code.jump(IFEQ, other);
+			code.load(left);
+			unboxNumber();
+			code.load(right);
+			unboxNumber();
+			code.op(DADD, -2);
+			boxNumber();
+			code.jump(GOTO, end);
+
+			code.place(other);
+			code.load(left);
+			code.load(right);
+			code.load(INTERPRETER_LOCAL);
+			loadToken(expr.operator);
+			helper("add", "(" + OBJECT + OBJECT + INTERPRETER + TOKEN + ")" + OBJECT, 4, true);
+			code.place(end);
+		}
+
+		@Override
+		public Void visitLiteralExpr(Expr.Literal expr) {
+			if (expr.value == null) {
+				code.op(ACONST_NULL, 1);
+			} else if (expr.value instanceof Boolean) {
+				pushBoolean((Boolean)expr.value);
+			} else {
+				loadConstant(expr.value, null);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitGroupingExpr(Expr.Grouping expr) {
+			compile(expr.expression);
+			return null;
+		}
+
+		@Override
+		public Void visitVariableExpr(Expr.Variable expr) {
+			Resolver.Slot slot = expr.slot;
+			if (slot == null) {
+				code.load(INTERPRETER_LOCAL);
+				code.pushInt(expr.global);
+				loadToken(expr.name);
+				helper("getGlobal", "(" + INTERPRETER + "I" + TOKEN + ")" + OBJECT, 3, true);
+			} else {
+				loadLocal(slot);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitThisExpr(Expr.This expr) {
+			loadLocal(expr.slot);
+			return null;
+		}
+
+		// Nothing captures a compiled function's own locals, so only its
+		// upvalues can be boxed. A compiled loop's frame can hold boxes for
+		// locals captured before the loop.
+		private void loadLocal(Resolver.Slot slot) {
+			if (slot.isUpvalue) {
+				code.load(UPVALUES_LOCAL);
+				code.pushInt(slot.index);
+				code.op(AALOAD, -1);
+			} else {
+				code.load(locals.get(slot.index));
+			}
+
+			if (slot.isBoxed) {
+				code.op(CHECKCAST, file.classRef(BOX), 0);
+				code.op(GETFIELD, file.fieldRef(BOX, "value", OBJECT), 0);
+			}
+		}
+
+		@Override
+		public Void visitAssignExpr(Expr.Assign expr) {
+			compile(expr.value);
+
+			Resolver.Slot slot = expr.slot;
+			if (slot == null) {
+				code.load(INTERPRETER_LOCAL);
+				code.pushInt(expr.global);
+				loadToken(expr.name);
+				helper("assignGlobal", "(" + OBJECT + INTERPRETER + "I" + TOKEN + ")" + OBJECT, 4, true);
+			} else if (slot.isBoxed && !slot.isUpvalue) {
+				code.load(locals.get(slot.index));
+				helper("assignBox", "(" + OBJECT + OBJECT + ")" + OBJECT, 2, true);
+			} else if (!slot.isUpvalue) {
+				code.op(DUP, 1);
+				code.store(locals.get(slot.index));
+			} else {
+				// An upvalue that's assigned is always boxed.
+				code.load(UPVALUES_LOCAL);
+				code.pushInt(slot.index);
+				helper("assignBoxed", "(" + OBJECT + ARRAY + "I)" + OBJECT, 3, true);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitUnaryExpr(Expr.Unary expr) {
+			if (expr.operator.type == TokenType.MINUS) {
+				number(expr);
+				boxNumber();
+			} else {
+				compile(expr.right);
+				helper("not", "(" + OBJECT + ")" + OBJECT, 1, true);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitBinaryExpr(Expr.Binary expr) {
+			switch (expr.operator.type) {
+				case COMMA:
+					compile(expr.left);
+					code.op(POP, -1);
+					compile(expr.right);
+					return null;
+				case GREATER:
+				case GREATER_EQUAL:
+				case LESS:
+				case LESS_EQUAL: {
+					Label isTrue = new Label();
+					Label end = new Label();
+					compare(expr, true, isTrue);
+					pushBoolean(false);
+					code.jump(GOTO, end);
+					code.place(isTrue);
+					pushBoolean(true);
+					code.place(end);
+					return null;
+				}
+				case EQUAL_EQUAL:
+				case BANG_EQUAL:
+					compile(expr.left);
+					compile(expr.right);
+					helper(expr.operator.type == TokenType.EQUAL_EQUAL ? "equal" : "notEqual",
+							"(" + OBJECT + OBJECT + ")" + OBJECT, 2, true);
+					return null;
+			}
+
+			if (isNumber(expr)) {
+				number(expr);
+				boxNumber();
+				return null;
+			}
+
+			// Only + is left.
+			if (expr.specialization != Specialization.STRING &&
+					expr.specialization != Specialization.GENERIC) {
+				addNumbers(expr);
+				return null;
+			}
+
+			compile(expr.left);
+			compile(expr.right);
+			code.load(INTERPRETER_LOCAL);
+			loadToken(expr.operator);
+			helper("add", "(" + OBJECT + OBJECT + INTERPRETER + TOKEN + ")" + OBJECT, 4, true);
+			return null;
+		}
+
+		@Override
+		public Void visitLogicalExpr(Expr.Logical expr) {
+			Label end = new Label();
+
+			compile(expr.left);
+			code.op(DUP, 1);
+			helper("isTruthy", "(" + OBJECT + ")Z", 1, true);
+			code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+			code.op(POP, -1);
+			compile(expr.right);
+			code.place(end);
+			return null;
+		}
+
+		@Override
+		public Void visitConditionalExpr(Expr.Conditional expr) {
+			Label elseBranch = new Label();
+			Label end = new Label();
+
+			branch(expr.condition, false, elseBranch);
+			compile(expr.thenBranch);
+			code.jump(GOTO, end);
+			code.place(elseBranch);
+			compile(expr.elseBranch);
+			code.place(end);
+			return null;
+		}
+
+		@Override
+		public Void visitCallExpr(Expr.Call expr) {
+			call(expr, false);
+			return null;
+		}
+
+		// A call in tail position goes through the tail helpers, which hand
+		// a call to a Lox function back to LoxFunction.call() to make.
+		private void call(Expr.Call expr, boolean isTail) {
+			if (expr.callee instanceof Expr.Get) {
+				invoke((Expr.Get)expr.callee, expr, isTail);
+				return;
+			}
+
+			compile(expr.callee);
+			if (expr.intrinsic != null) {
+				intrinsic(expr);
+				return;
+			}
+
+			String arguments = arguments(expr, isTail);
+
+			code.load(INTERPRETER_LOCAL);
+			loadToken(expr.paren);
+			helper(isTail ? "tailCall" : "call",
+					"(" + OBJECT + arguments + INTERPRETER + TOKEN + ")" + OBJECT,
+					3 + argumentSlots(arguments), true);
+		}
+
+		// A call the resolver found names a native, with at most three
+		// arguments. Tail position doesn't matter, since a native returns
+		// straight away.
+		private void intrinsic(Expr.Call expr) {
+			for (Expr argument : expr.arguments) {
+				compile(argument);
+			}
+
+			int count = expr.arguments.size();
+			loadConstant(expr.intrinsic, LOX + "Native");
+			code.load(INTERPRETER_LOCAL);
+			loadToken(expr.paren);
+			helper("callNative", "(" + OBJECT + OBJECT.repeat(count) + NATIVE + INTERPRETER + TOKEN + ")" + OBJECT,
+					4 + count, true);
+		}
+
+		// Leaves the object, the method to call on it (or null) and the field
+		// to call instead (or null) under the arguments, so both are looked up
+		// before the arguments run, as in the interpreter.
+		private void invoke(Expr.Get get, Expr.Call expr, boolean isTail) {
+			compile(get.object);
+			code.op(DUP, 1);
+			loadToken(get.name);
+			loadConstant(get.cache, LOX + "Shape$Cache");
+			helper("lookUpMethod", "(" + OBJECT + TOKEN + CACHE + ")" + FUNCTION, 3, true);
+			code.op(DUP2, 2);
+			loadToken(get.name);
+			loadConstant(get.cache, LOX + "Shape$Cache");
+			helper("field", "(" + OBJECT + FUNCTION + TOKEN + CACHE + ")" + OBJECT, 4, true);
+			String arguments = arguments(expr, isTail);
+
+			code.load(INTERPRETER_LOCAL);
+			loadToken(expr.paren);
+			helper(isTail ? "tailInvoke" : "invoke",
+					"(" + OBJECT + FUNCTION + OBJECT + arguments + INTERPRETER + TOKEN + ")" + OBJECT,
+					5 + argumentSlots(arguments), true);
+		}
+
+		// Pushes a call's arguments and returns their part of the helper's
+		// descriptor. Up to three are passed as they are, to the fixed-arity
+		// helpers; more than that, or any for a tail call, go in an array.
+		private String arguments(Expr.Call expr, boolean isTail) {
+			int count = expr.arguments.size();
+			if (!isTail && count <= 3) {
+				for (Expr argument : expr.arguments) {
+					compile(argument);
+				}
+				return OBJECT.repeat(count);
+			}
+
+			code.pushInt(count);
+			code.op(ANEWARRAY, file.classRef("java/lang/Object"), 0);
+			for (int i = 0; i < count; i++) {
+				code.op(DUP, 1);
+				code.pushInt(i);
+				compile(expr.arguments.get(i));
+				code.op(AASTORE, -3);
+			}
+			return ARRAY;
+		}
+
+		private static int argumentSlots(String arguments) {
+			if (arguments.equals(ARRAY)) return 1;
+			return arguments.length() / OBJECT.length();
+		}
+
+		@Override
+		public Void visitGetExpr(Expr.Get expr) {
+			compile(expr.object);
+			loadToken(expr.name);
+			loadConstant(expr.cache, LOX + "Shape$Cache");
+			helper("get", "(" + OBJECT + TOKEN + CACHE + ")" + OBJECT, 3, true);
+			return null;
+		}
+
+		@Override
+		public Void visitSetExpr(Expr.Set expr) {
+			compile(expr.object);
+			loadToken(expr.name);
+			helper("setTarget", "(" + OBJECT + TOKEN + ")" + OBJECT, 2, true);
+			compile(expr.value);
+			loadToken(expr.name);
+			loadConstant(expr.cache, LOX + "Shape$Cache");
+			helper("set", "(" + OBJECT + OBJECT + TOKEN + CACHE + ")" + OBJECT, 4, true);
+			return null;
+		}
+
+		@Override
+		public Void visitSuperExpr(Expr.Super expr) {
+			loadLocal(expr.slot);
+			loadLocal(expr.thisSlot);
+			loadToken(expr.method);
+			helper("superMethod", "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT, 3, true);
+			return null;
+		}
+
+		@Override
+		public Void visitExpressionStmt(Stmt.Expression stmt) {
+			compile(stmt.expression);
+			code.op(POP, -1);
+			return null;
+		}
+
+		@Override
+		public Void visitPrintStmt(Stmt.Print stmt) {
+			code.load(INTERPRETER_LOCAL);
+			compile(stmt.expression);
+			helper("print", "(" + INTERPRETER + OBJECT + ")V", 2, false);
+			return null;
+		}
+
+		@Override
+		public Void visitVarStmt(Stmt.Var stmt) {
+			if (stmt.initializer != null) {
+				compile(stmt.initializer);
+			} else {
+				code.op(ACONST_NULL, 1);
+			}
+
+			int local = nextLocal++;
+			code.store(local);
+			locals.add(local);
+			return null;
+		}
+
+		@Override
+		public Void visitBlockStmt(Stmt.Block stmt) {
+			// Its locals follow those already in the frame, as in an
+			// Environment.
+			int mark = locals.size();
+			for (Stmt statement : stmt.statements) {
+				compile(statement);
+			}
+			locals.subList(mark, locals.size()).clear();
+			return null;
+		}
+
+		@Override
+		public Void visitIfStmt(Stmt.If stmt) {
+			Label elseBranch = new Label();
+			branch(stmt.condition, false, elseBranch);
+			compile(stmt.thenBranch);
+
+			if (stmt.elseBranch == null) {
+				code.place(elseBranch);
+				return null;
+			}
+
+			Label end = new Label();
+			code.jump(GOTO, end);
+			code.place(elseBranch);
+			compile(stmt.elseBranch);
+			code.place(end);
+			return null;
+		}
+
+		@Override
+		public Void visitWhileStmt(Stmt.While stmt) {
+			Label start = new Label();
+			Label exit = new Label();
+
+			code.place(start);
+			branch(stmt.condition, false, exit);
+			compile(stmt.body);
+			code.jump(GOTO, start);
+			code.place(exit);
+			return null;
+		}
+
+		@Override
+		public Void visitReturnStmt(Stmt.Return stmt) {
+			if (stmt.isTailCall) {
+				call((Expr.Call)stmt.value, true);
+			} else if (stmt.value != null) {
+				compile(stmt.value);
+			} else {
+				code.op(ACONST_NULL, 1);
+			}
+			if (isLoop) helper("returned", "(" + OBJECT + ")" + RESULT, 1, true);
+			code.op(ARETURN, -1);
+			return null;
+		}
+
+		@Override
+		public Void visitFunctionStmt(Stmt.Function stmt) {
+			throw new Unsupported();
+		}
+
+		@Override
+		public Void visitClassStmt(Stmt.Class stmt) {
+			throw new Unsupported();
+		}
+	}
+
+	// Helpers called from generated code. They match the Interpreter's
+	// semantics and error messages exactly.
+
+	static boolean isTruthy(Object value) {
+		return Interpreter.isTruthy(value);
+	}
+
+	static boolean isEqual(Object a, Object b) {
+		return Interpreter.isEqual(a, b);
+	}
+
+	static Object equal(Object a, Object b) {
+		return Interpreter.isEqual(a, b);
+	}
+
+	static Object notEqual(Object a, Object b) {
+		return !Interpreter.isEqual(a, b);
+	}
+
+	static Object not(Object value) {
+		return !Interpreter.isTruthy(value);
+	}
+
+	static Object add(Object a, Object b, Interpreter interpreter, Token operator) {
+		if (Interpreter.isString(a) || Interpreter.isString(b)) {
+			return interpreter.concatenate(a, b);
+		}
+
+		if (a instanceof Double && b instanceof Double) {
+			return (double)a + (double)b;
+		}
+
+		throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+	}
+
+	static double unaryOperand(Object value, Token operator) {
+		Interpreter.checkNumberOperand(operator, value);
+		return (double)value;
+	}
+
+	static double binaryOperand(Object value, Token operator) {
+		if (value instanceof Double) return (double)value;
+		throw new RuntimeError(operator, "Operands must be numbers.");
+	}
+
+	static double divisor(double value, Token operator) {
+		if (value == 0) throw new RuntimeError(operator, "Cannot divide by zero.");
+		return value;
+	}
+
+	static Object getGlobal(Interpreter interpreter, int global, Token name) {
+		return interpreter.globals.getGlobal(global, name);
+	}
+
+	static Object assignGlobal(Object value, Interpreter interpreter, int global, Token name) {
+		interpreter.globals.assignGlobal(global, name, value);
+		return value;
+	}
+
+	static Object assignBoxed(Object value, Object[] upvalues, int index) {
+		((Environment.Box)upvalues[index]).value = value;
+		return value;
+	}
+
+	static Object assignBox(Object value, Object box) {
+		((Environment.Box)box).value = value;
+		return value;
+	}
+
+	static Object call(Object callee, Object[] arguments, Interpreter interpreter, Token paren) {
+		return interpreter.call(callee, arguments, paren);
+	}
+
+	static Object call(Object callee, Interpreter interpreter, Token paren) {
+		return interpreter.call(callee, paren);
+	}
+
+	static Object call(Object callee, Object a, Interpreter interpreter, Token paren) {
+		return interpreter.call(callee, paren, a);
+	}
+
+	static Object call(Object callee, Object a, Object b, Interpreter interpreter, Token paren) {
+		return interpreter.call(callee, paren, a, b);
+	}
+
+	static Object call(Object callee, Object a, Object b, Object c, Interpreter interpreter, Token paren) {
+		return interpreter.call(callee, paren, a, b, c);
+	}
+
+	// Runs the native a call names, or calls the callee if its global no
+	// longer holds that native.
+	static Object callNative(Object callee, Native function, Interpreter interpreter, Token paren) {
+		if (callee != function) return interpreter.call(callee, paren);
+		return function.apply(paren, null, null, null);
+	}
+
+	static Object callNative(Object callee, Object a, Native function, Interpreter interpreter, Token paren) {
+		if (callee != function) return interpreter.call(callee, paren, a);
+		return function.apply(paren, a, null, null);
+	}
+
+	static Object callNative(Object callee, Object a, Object b, Native function,
+			Interpreter interpreter, Token paren) {
+		if (callee != function) return interpreter.call(callee, paren, a, b);
+		return function.apply(paren, a, b, null);
+	}
+
+	static Object callNative(Object callee, Object a, Object b, Object c, Native function,
+			Interpreter interpreter, Token paren) {
+		if (callee != function) return interpreter.call(callee, paren, a, b, c);
+		return function.apply(paren, a, b, c);
+	}
+
+	static Object tailCall(Object callee, Object[] arguments, Interpreter interpreter, Token paren) {
+		return interpreter.tailCall(callee, arguments, paren);
+	}
+
+	static LoxFunction lookUpMethod(Object object, Token name, Shape.Cache cache) {
+		if (object instanceof LoxInstance) {
+			return ((LoxInstance)object).lookUpMethod(name, cache);
+		}
+
+		throw new RuntimeError(name, "Only instances have properties.");
+	}
+
+	static Object field(Object object, LoxFunction method, Token name, Shape.Cache cache) {
+		if (method != null) return null;
+		return ((LoxInstance)object).get(name, cache);
+	}
+
+	static Object invoke(Object object, LoxFunction method, Object field, Object[] arguments,
+			Interpreter interpreter, Token paren) {
+		if (method != null) return interpreter.invoke(method, (LoxInstance)object, arguments, paren);
+		return interpreter.call(field, arguments, paren);
+	}
+
+	static Object invoke(Object object, LoxFunction method, Object field,
+			Interpreter interpreter, Token paren) {
+		if (method != null) return interpreter.invoke(method, (LoxInstance)object, paren);
+		return interpreter.call(field, paren);
+	}
+
+	static Object invoke(Object object, LoxFunction method, Object field, Object a,
+			Interpreter interpreter, Token paren) {
+		if (method != null) return interpreter.invoke(method, (LoxInstance)object, paren, a);
+		return interpreter.call(field, paren, a);
+	}
+
+	static Object invoke(Object object, LoxFunction method, Object field, Object a, Object b,
+			Interpreter interpreter, Token paren) {
+		if (method != null) return interpreter.invoke(method, (LoxInstance)object, paren, a, b);
+		return interpreter.call(field, paren, a, b);
+	}
+
+	static Object invoke(Object object, LoxFunction method, Object field, Object a, Object b, Object c,
+			Interpreter interpreter, Token paren) {
+		if (method != null) return interpreter.invoke(method, (LoxInstance)object, paren, a, b, c);
+		return interpreter.call(field, paren, a, b, c);
+	}
+
+	static Object tailInvoke(Object object, LoxFunction method, Object field, Object[] arguments,
+			Interpreter interpreter, Token paren) {
+		if (method != null) return interpreter.tailInvoke(method, (LoxInstance)object, arguments, paren);
+		return interpreter.tailCall(field, arguments, paren);
+	}
+
+	static Object get(Object object, Token name, Shape.Cache cache) {
+		if (object instanceof LoxInstance) {
+			return ((LoxInstance)object).get(name, cache);
+		}
+
+		throw new RuntimeError(name, "Only instances have properties.");
+	}
+
+	static Object setTarget(Object object, Token name) {
+		if (!(object instanceof LoxInstance)) {
+			throw new RuntimeError(name, "Only instances have fields.");
+		}
+
+		return object;
+	}
+
+	static Object set(Object object, Object value, Token name, Shape.Cache cache) {
+		((LoxInstance)object).set(name, value, cache);
+		return value;
+	}
+
+	static Object superMethod(Object superclass, Object object, Token method) {
+		LoxFunction function = ((LoxClass)superclass).findMethod(method.lexeme);
+		if (function == null) {
+			throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+		}
+
+		return function.bind((LoxInstance)object);
+	}
+
+	static Return returned(Object value) {
+		return new Return(value);
+	}
+
+	static void print(Interpreter interpreter, Object value) {
+		interpreter.print(value);
+	}
+}
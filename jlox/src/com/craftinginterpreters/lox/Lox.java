@@ -3,6 +3,8 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -17,20 +19,66 @@ public class Lox {
 	// NOTE: strictly for not throwing the semicolon parse error when REPL evaluates an expression without an ending semicolon. Feels hacky.
 	static boolean suppressErrors = false;
 
+	// Which engine runs scripts: the tree-walking Interpreter, the closure
+	// compiled tree or the bytecode VM. The REPL always uses the tree-walker.
+	private enum Engine { TREE, CLOSURE, VM }
+	private static Engine engine = Engine.TREE;
+	// Whether a script is read whole and scanned in parallel chunks, rather
+	// than streamed.
+	private static boolean parallelScan = false;
+
 	public static void main(String[] args) throws IOException {
-		if (args.length > 1) {
-			System.out.println("Usage: jlox [script]");
-			System.exit(64);
-		} else if (args.length == 1) {
-			runFile(args[0]);
+		String script = null;
+		for (String arg : args) {
+			if (arg.equals("--engine=tree")) {
+				engine = Engine.TREE;
+			} else if (arg.equals("--engine=closure")) {
+				engine = Engine.CLOSURE;
+			} else if (arg.equals("--engine=vm")) {
+				engine = Engine.VM;
+			} else if (arg.equals("--no-jit")) {
+				Jit.enabled = false;
+			} else if (arg.equals("--async-output")) {
+				interpreter.output = new Output.Async(interpreter.output);
+			} else if (arg.equals("--parallel-scan")) {
+				parallelScan = true;
+			} else if (script == null && !arg.startsWith("--")) {
+				script = arg;
+			} else {
+				usage();
+			}
+		}
+
+		if (script != null) {
+			runFile(script);
 		} else {
 			runPrompt();
 		}
 	}
 
+	private static void usage() {
+		System.out.println("Usage: jlox [--engine=tree|closure|vm] [--no-jit] [--async-output] [--parallel-scan] [script]");
+		System.exit(64);
+	}
+
 	private static void runFile(String path) throws IOException {
-		byte[] bytes = Files.readAllBytes(Paths.get(path));
-		run(new String(bytes, Charset.defaultCharset()));
+		// Reading the script as it's scanned and writing its output can
+		// both fail with an UncheckedIOException.
+		try {
+			if (parallelScan) {
+				byte[] bytes = Files.readAllBytes(Paths.get(path));
+				runAndFlush(Scanner.scanInParallel(new String(bytes, Charset.defaultCharset())));
+			} else {
+				// The scanner reads the file as the parser asks for tokens, so
+				// the source is never all in memory at once.
+				try (Reader reader = new InputStreamReader(
+						Files.newInputStream(Paths.get(path)), Charset.defaultCharset())) {
+					runAndFlush(new Scanner(reader).tokens());
+				}
+			}
+		} catch (UncheckedIOException error) {
+			throw error.getCause();
+		}
 
 		if (hadError) System.exit(65);
 		if (hadRuntimeError) System.exit(70);
@@ -54,7 +102,7 @@ public class Lox {
 
 			// Try parsing as an expression first (silently)
 			Scanner scanner = new Scanner(line);
-			List<Token> tokens = scanner.scanTokens();
+			Tokens tokens = scanner.scanTokens();
 			Parser parser = new Parser(tokens);
 
 			suppressErrors = true;
@@ -69,12 +117,19 @@ public class Lox {
 					System.out.println("AST: " + new AstPrinter().print(expr));
 				}
 
+				// The resolver numbers the globals the expression uses.
+				new Resolver(interpreter.globals).resolve(expr);
+				if (hadError) {
+					hadError = false;
+					continue;
+				}
+
 				try {
-					Object value = interpreter.evaluate(expr);
-					System.out.println(interpreter.stringify(value));
+					interpreter.print(interpreter.evaluate(expr));
 				} catch (RuntimeError error) {
 					Lox.runtimeError(error);
 				}
+				interpreter.output.flush();
 				continue;
 			}
 
@@ -90,6 +145,12 @@ public class Lox {
 				continue;
 			}
 
+			new Resolver(interpreter.globals).resolve(statements);
+			if (hadError) {
+				hadError = false;
+				continue;
+			}
+
 			for (Stmt statement : statements) {
 				if (printAst) {
 					System.out.println("AST: " + new AstPrinter().print(statement));
@@ -97,17 +158,24 @@ public class Lox {
 
 				if (statement instanceof Stmt.Expression) {
 					Object value = interpreter.evaluateExpressionStmt((Stmt.Expression) statement);
-					System.out.println(interpreter.stringify(value));
+					interpreter.print(value);
 				} else {
 					interpreter.execute(statement);
 				}
+				interpreter.output.flush();
 			}
 		}
 	}
 
-	private static void run(String source) {
-		Scanner scanner = new Scanner(source);
-		List<Token> tokens = scanner.scanTokens();
+	private static void runAndFlush(Tokens tokens) {
+		try {
+			run(tokens);
+		} finally {
+			interpreter.output.flush();
+		}
+	}
+
+	private static void run(Tokens tokens) {
 		Parser parser = new Parser(tokens);
 		List<Stmt> statements = parser.parse();
 
@@ -118,13 +186,27 @@ public class Lox {
 		// Stop if there was a syntax error
 		if (hadError) return;
 
-		Resolver resolver = new Resolver(interpreter);
+		Resolver resolver = new Resolver(interpreter.globals);
 		resolver.resolve(statements);
 
 		// Stop if there was a resolution error
 		if (hadError) return;
 
-		interpreter.interpret(statements);
+		statements = new Optimizer(interpreter).optimize(statements);
+
+		switch (engine) {
+			case CLOSURE:
+				interpreter.interpret(new ClosureCompiler(interpreter).compile(statements));
+				break;
+			case VM:
+				VM.ObjFunction script = new BytecodeCompiler(interpreter.globals).compile(statements);
+				if (hadError) return;
+				new VM(interpreter).interpret(script);
+				break;
+			default:
+				interpreter.interpret(statements);
+				break;
+		}
 	}
 
 	static void error(int line, String message) {
@@ -132,6 +214,7 @@ public class Lox {
 	}
 
 	private static void report(int line, String where, String message) {
+		interpreter.output.flush();
 		System.err.println("[line " + line + "] Error" + where + ": " + message);
 		hadError = true;
 	}
@@ -146,6 +229,7 @@ public class Lox {
 	}
 
 	static void runtimeError(RuntimeError error) {
+		interpreter.output.flush();
 		System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
 		hadRuntimeError = true;
 	}
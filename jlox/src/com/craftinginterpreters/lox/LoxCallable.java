@@ -1,8 +1,24 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 interface LoxCallable {
 	int arity();
-	Object call(Interpreter interpreter, List<Object> arguments);
+	Object call(Interpreter interpreter, Object[] arguments);
+
+	// Entry points for calls with only a few arguments, so the caller doesn't
+	// need to build an array. Callers check arity before using any of these.
+	default Object call(Interpreter interpreter) {
+		return call(interpreter, new Object[0]);
+	}
+
+	default Object call(Interpreter interpreter, Object a) {
+		return call(interpreter, new Object[] { a });
+	}
+
+	default Object call(Interpreter interpreter, Object a, Object b) {
+		return call(interpreter, new Object[] { a, b });
+	}
+
+	default Object call(Interpreter interpreter, Object a, Object b, Object c) {
+		return call(interpreter, new Object[] { a, b, c });
+	}
 }
@@ -1,29 +1,36 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
 	final String name;
 	final LoxClass superclass;
+	// Inherited methods are copied down when the class is created, so a
+	// lookup is a single get however deep the hierarchy is.
 	private final Map<String, LoxFunction> methods;
+	private final LoxFunction initializer;
+	private final int arity;
+	// How many fields instances of this class have needed so far.
+	int fieldCount = 0;
 
 	LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
 		this.superclass = superclass;
 		this.name = name;
-		this.methods = methods;
-	}
-
-	LoxFunction findMethod(String name) {
-		if (methods.containsKey(name)) {
-			return methods.get(name);
-		}
 
 		if (superclass != null) {
-			return superclass.findMethod(name);
+			this.methods = new HashMap<>(superclass.methods);
+			this.methods.putAll(methods);
+		} else {
+			this.methods = methods;
 		}
 
-		return null;
+		initializer = this.methods.get("init");
+		arity = initializer == null ? 0 : initializer.arity();
+	}
+
+	LoxFunction findMethod(String name) {
+		return methods.get(name);
 	}
 
 	@Override
@@ -32,18 +39,47 @@ class LoxClass implements LoxCallable {
 	}
 
 	@Override
-	public Object call(Interpreter interpreter, List<Object> arguments) {
+	public Object call(Interpreter interpreter, Object[] arguments) {
 		LoxInstance instance = new LoxInstance(this);
-		LoxFunction initializer = findMethod("init");
 		if (initializer != null) {
-			initializer.bind(instance).call(interpreter, arguments);
+			initializer.invoke(interpreter, instance, arguments);
 		}
 		return instance;
 	}
 
+	@Override
+	public Object call(Interpreter interpreter) {
+		LoxInstance instance = new LoxInstance(this);
+		if (initializer != null) {
+			initializer.invoke(interpreter, instance);
+		}
+		return instance;
+	}
+
+	// Arity is checked first, so a class called with arguments has an
+	// initializer.
+	@Override
+	public Object call(Interpreter interpreter, Object a) {
+		LoxInstance instance = new LoxInstance(this);
+		initializer.invoke(interpreter, instance, a);
+		return instance;
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object a, Object b) {
+		LoxInstance instance = new LoxInstance(this);
+		initializer.invoke(interpreter, instance, a, b);
+		return instance;
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object a, Object b, Object c) {
+		LoxInstance instance = new LoxInstance(this);
+		initializer.invoke(interpreter, instance, a, b, c);
+		return instance;
+	}
+
 	public int arity() {
-		LoxFunction initializer = findMethod("init");
-		if (initializer == null) return 0;
-		return initializer.arity();
+		return arity;
 	}
 }
@@ -1,41 +1,193 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 class LoxFunction implements LoxCallable {
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+
 	private final Stmt.Function declaration;
-	private final Environment closure;
+	// The values, or boxes, of the variables it captured when created.
+	private final Object[] upvalues;
 	private final boolean isInitializer;
+	// Set when the function was created by closure-compiled code.
+	private final ClosureCompiler.Exec body;
+	// The instance a method was bound to.
+	private final LoxInstance receiver;
+
+	LoxFunction(Stmt.Function declaration, Object[] upvalues, boolean isInitializer) {
+		this(declaration, upvalues, isInitializer, null);
+	}
 
-	LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+	LoxFunction(Stmt.Function declaration, Object[] upvalues, boolean isInitializer,
+			ClosureCompiler.Exec body) {
+		this(declaration, upvalues, isInitializer, body, null);
+	}
+
+	private LoxFunction(Stmt.Function declaration, Object[] upvalues, boolean isInitializer,
+			ClosureCompiler.Exec body, LoxInstance receiver) {
 		this.isInitializer = isInitializer;
 		this.declaration = declaration;
-		this.closure = closure;
+		this.upvalues = upvalues;
+		this.body = body;
+		this.receiver = receiver;
 	}
 
 	LoxFunction bind(LoxInstance instance) {
-		Environment environment = new Environment(closure);
-		environment.define("this", instance);
-		return new LoxFunction(declaration, environment, isInitializer);
+		return new LoxFunction(declaration, upvalues, isInitializer, body, instance);
+	}
+
+	// A call made by "return f(...)". The engines hand it back instead of
+	// making it, and the function it was returned from makes it in its place,
+	// so tail recursion runs in constant Java stack.
+	static class TailCall {
+		final LoxFunction function;
+		final LoxInstance receiver;
+		final Object[] arguments;
+
+		TailCall(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+			this.function = function;
+			this.receiver = receiver;
+			this.arguments = arguments;
+		}
+	}
+
+	TailCall tailCall(Object[] arguments) {
+		return new TailCall(this, receiver, arguments);
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object[] arguments) {
+		return invoke(interpreter, receiver, arguments);
 	}
 
 	@Override
-	public Object call(Interpreter interpreter, List<Object> arguments) {
-		Environment environment = new Environment(closure);
-		for (int i = 0; i < declaration.params.size(); i++) {
-			environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+	public Object call(Interpreter interpreter) {
+		return invoke(interpreter, receiver);
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object a) {
+		return invoke(interpreter, receiver, a);
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object a, Object b) {
+		return invoke(interpreter, receiver, a, b);
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object a, Object b, Object c) {
+		return invoke(interpreter, receiver, a, b, c);
+	}
+
+	// Calls the function with the given receiver. Like call(), there are
+	// entry points for up to three arguments, which then go straight into
+	// the new frame unless the function has been compiled.
+	Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+		return complete(interpreter, execute(interpreter, receiver, arguments));
+	}
+
+	Object invoke(Interpreter interpreter, LoxInstance receiver) {
+		if (isCompiled()) return complete(interpreter, runCompiled(interpreter, receiver, NO_ARGUMENTS));
+
+		Environment environment = frame(interpreter, receiver);
+		return complete(interpreter, run(interpreter, environment, receiver));
+	}
+
+	Object invoke(Interpreter interpreter, LoxInstance receiver, Object a) {
+		if (isCompiled()) return complete(interpreter, runCompiled(interpreter, receiver, new Object[] { a }));
+
+		Environment environment = frame(interpreter, receiver);
+		environment.define(declaration.params.get(0).lexeme, a);
+		return complete(interpreter, run(interpreter, environment, receiver));
+	}
+
+	Object invoke(Interpreter interpreter, LoxInstance receiver, Object a, Object b) {
+		if (isCompiled()) return complete(interpreter, runCompiled(interpreter, receiver, new Object[] { a, b }));
+
+		Environment environment = frame(interpreter, receiver);
+		environment.define(declaration.params.get(0).lexeme, a);
+		environment.define(declaration.params.get(1).lexeme, b);
+		return complete(interpreter, run(interpreter, environment, receiver));
+	}
+
+	Object invoke(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c) {
+		if (isCompiled()) return complete(interpreter, runCompiled(interpreter, receiver, new Object[] { a, b, c }));
+
+		Environment environment = frame(interpreter, receiver);
+		environment.define(declaration.params.get(0).lexeme, a);
+		environment.define(declaration.params.get(1).lexeme, b);
+		environment.define(declaration.params.get(2).lexeme, c);
+		return complete(interpreter, run(interpreter, environment, receiver));
+	}
+
+	// Makes the tail calls a function hands back until one returns a value.
+	private static Object complete(Interpreter interpreter, Object result) {
+		while (result instanceof TailCall) {
+			TailCall tailCall = (TailCall)result;
+			result = tailCall.function.execute(interpreter, tailCall.receiver, tailCall.arguments);
 		}
 
-		try {
-			interpreter.executeBlock(declaration.body, environment);
-		} catch (Return returnValue) {
-			if (isInitializer) return closure.getAt(0, "this");
+		return result;
+	}
+
+	private Object execute(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+		if (isCompiled()) return runCompiled(interpreter, receiver, arguments);
 
-			return returnValue.value;
+		Environment environment = frame(interpreter, receiver);
+		for (int i = 0; i < arguments.length; i++) {
+			environment.define(declaration.params.get(i).lexeme, arguments[i]);
 		}
+		return run(interpreter, environment, receiver);
+	}
 
-		if (isInitializer) return closure.getAt(0, "this");
-		return null;
+	// The count stops at the threshold, so a function the JIT couldn't
+	// compile isn't tried again, and the count can't wrap around to it.
+	private boolean isCompiled() {
+		if (declaration.compiled == null && declaration.calls < Jit.THRESHOLD &&
+				++declaration.calls == Jit.THRESHOLD) {
+			declaration.compiled = Jit.compile(declaration);
+		}
+
+		return declaration.compiled != null;
+	}
+
+	private Object runCompiled(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+		Object result = declaration.compiled.run(interpreter, upvalues, receiver, arguments);
+		if (isInitializer) return receiver;
+		return result;
+	}
+
+	// Every frame() is matched by the run() that follows it. Closures copy
+	// what they capture out of the frame, so it's free for another call as
+	// soon as this one returns.
+	private Environment frame(Interpreter interpreter, LoxInstance receiver) {
+		Environment environment = interpreter.pushFrame(upvalues, declaration.frameSize);
+		if (declaration.isMethod) environment.define("this", receiver);
+		return environment;
+	}
+
+	private Object run(Interpreter interpreter, Environment environment, LoxInstance receiver) {
+		Return result;
+		try {
+			if (declaration.boxedParams != null) boxParams(environment);
+			if (body != null) {
+				result = body.exec(environment);
+			} else {
+				result = interpreter.executeBlock(declaration.body, environment);
+			}
+		} finally {
+			interpreter.popFrame();
+		}
+
+		if (isInitializer) return receiver;
+		if (result == null) return null;
+		return result.value;
+	}
+
+	private void boxParams(Environment environment) {
+		int first = declaration.isMethod ? 1 : 0;
+		for (int i = 0; i < declaration.boxedParams.length; i++) {
+			if (declaration.boxedParams[i]) environment.box(first + i);
+		}
 	}
 
 	@Override
@@ -1,20 +1,20 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
 	private LoxClass klass;
-	private final Map<String, Object> fields = new HashMap<>();
+	private Shape shape = Shape.EMPTY;
+	private Object[] fields;
 
 	LoxInstance(LoxClass klass) {
 		this.klass = klass;
+		this.fields = new Object[klass.fieldCount];
 	}
 
-	Object get(Token name) {
-		if (fields.containsKey(name.lexeme)) {
-			return fields.get(name.lexeme);
-		}
+	Object get(Token name, Shape.Cache cache) {
+		int index = cache.indexOf(shape, name.lexeme);
+		if (index != -1) return fields[index];
 
 		LoxFunction method = klass.findMethod(name.lexeme);
 		if (method != null) return method.bind(this);
@@ -22,8 +22,32 @@ class LoxInstance {
 		throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
 	}
 
-	void set(Token name, Object value) {
-		fields.put(name.lexeme, value);
+	// For a call through a property: the method to call with this instance
+	// as its receiver, or null when a field by that name shadows it.
+	LoxFunction lookUpMethod(Token name, Shape.Cache cache) {
+		if (cache.indexOf(shape, name.lexeme) != -1) return null;
+
+		LoxFunction method = klass.findMethod(name.lexeme);
+		if (method != null) return method;
+
+		throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+	}
+
+	void set(Token name, Object value, Shape.Cache cache) {
+		int index = cache.indexOf(shape, name.lexeme);
+		if (index == -1) {
+			index = shape.size();
+			shape = cache.with(shape, name.lexeme);
+			if (index == fields.length) {
+				fields = Arrays.copyOf(fields, Math.max(4, index * 2));
+			}
+
+			// New instances of the class start out with room for every field
+			// earlier ones ended up with.
+			if (index >= klass.fieldCount) klass.fieldCount = index + 1;
+		}
+
+		fields[index] = value;
 	}
 
 	@Override
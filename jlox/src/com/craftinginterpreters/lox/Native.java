@@ -0,0 +1,202 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The functions implemented in Java that every program starts with. The
+// interpreter's call entry points recognize a Native callee and run it
+// directly, passing the call's token for errors, instead of going through
+// the LoxCallable protocol.
+//
+// A call that names a native global directly is marked by the resolver, and
+// runs apply() as soon as the callee turns out to still be that native, so
+// it skips even the call entry points.
+enum Native implements LoxCallable {
+	CLOCK("clock", 0),
+	NANO_TIME("nanoTime", 0),
+
+	ABS("abs", 1),
+	FLOOR("floor", 1),
+	CEIL("ceil", 1),
+	SQRT("sqrt", 1),
+	EXP("exp", 1),
+	LOG("log", 1),
+	SIN("sin", 1),
+	COS("cos", 1),
+	TAN("tan", 1),
+	ATAN2("atan2", 2),
+	POW("pow", 2),
+	MIN("min", 2),
+	MAX("max", 2),
+
+	LENGTH("length", 1),
+	SUBSTRING("substring", 3),
+	INDEX_OF("indexOf", 2),
+	CHAR_CODE("charCode", 2),
+	FROM_CHAR_CODE("fromCharCode", 1);
+
+	final String name;
+	private final int arity;
+
+	Native(String name, int arity) {
+		this.name = name;
+		this.arity = arity;
+	}
+
+	private static final Map<String, Native> byName = new HashMap<>();
+	static {
+		for (Native function : values()) {
+			byName.put(function.name, function);
+		}
+	}
+
+	static void defineAll(Environment globals) {
+		for (Native function : values()) {
+			globals.define(function.name, function);
+		}
+	}
+
+	// Null unless a native has the name.
+	static Native named(String name) {
+		return byName.get(name);
+	}
+
+	Object call(Token paren, Object[] arguments) {
+		Interpreter.checkArity(this, arguments.length, paren);
+		switch (arguments.length) {
+			case 0: return apply(paren, null, null, null);
+			case 1: return apply(paren, arguments[0], null, null);
+			case 2: return apply(paren, arguments[0], arguments[1], null);
+			default: return apply(paren, arguments[0], arguments[1], arguments[2]);
+		}
+	}
+
+	Object call(Token paren) {
+		Interpreter.checkArity(this, 0, paren);
+		return apply(paren, null, null, null);
+	}
+
+	Object call(Token paren, Object a) {
+		Interpreter.checkArity(this, 1, paren);
+		return apply(paren, a, null, null);
+	}
+
+	Object call(Token paren, Object a, Object b) {
+		Interpreter.checkArity(this, 2, paren);
+		return apply(paren, a, b, null);
+	}
+
+	Object call(Token paren, Object a, Object b, Object c) {
+		Interpreter.checkArity(this, 3, paren);
+		return apply(paren, a, b, c);
+	}
+
+	// Arguments are in a, b and c, as many as the function takes. The
+	// arity has already been checked.
+	Object apply(Token paren, Object a, Object b, Object c) {
+		switch (this) {
+			case CLOCK: return (double)System.currentTimeMillis() / 1000.0;
+			case NANO_TIME: return (double)System.nanoTime();
+
+			case ABS: return Math.abs(number(paren, a));
+			case FLOOR: return Math.floor(number(paren, a));
+			case CEIL: return Math.ceil(number(paren, a));
+			case SQRT: return Math.sqrt(number(paren, a));
+			case EXP: return Math.exp(number(paren, a));
+			case LOG: return Math.log(number(paren, a));
+			case SIN: return Math.sin(number(paren, a));
+			case COS: return Math.cos(number(paren, a));
+			case TAN: return Math.tan(number(paren, a));
+			case ATAN2: return Math.atan2(number(paren, a), number(paren, b));
+			case POW: return Math.pow(number(paren, a), number(paren, b));
+			case MIN: return Math.min(number(paren, a), number(paren, b));
+			case MAX: return Math.max(number(paren, a), number(paren, b));
+
+			case LENGTH: return (double)string(paren, a).length();
+			case SUBSTRING: {
+				String string = string(paren, a);
+				int start = index(paren, b);
+				int end = index(paren, c);
+				if (start < 0 || end > string.length() || start > end) {
+					throw new RuntimeError(paren, "Substring out of range.");
+				}
+				return string.substring(start, end);
+			}
+			case INDEX_OF: return (double)string(paren, a).indexOf(string(paren, b));
+			case CHAR_CODE: {
+				String string = string(paren, a);
+				int index = index(paren, b);
+				if (index < 0 || index >= string.length()) {
+					throw new RuntimeError(paren, "Index out of range.");
+				}
+				return (double)string.charAt(index);
+			}
+			case FROM_CHAR_CODE: {
+				int code = index(paren, a);
+				if (code < 0 || code > Character.MAX_VALUE) {
+					throw new RuntimeError(paren, "Character code out of range.");
+				}
+				return String.valueOf((char)code);
+			}
+		}
+
+		// Unreachable.
+		return null;
+	}
+
+	private static double number(Token paren, Object value) {
+		if (value instanceof Double) return (double)value;
+		throw new RuntimeError(paren, "Argument must be a number.");
+	}
+
+	private static int index(Token paren, Object value) {
+		double number = number(paren, value);
+		if (number != (int)number) {
+			throw new RuntimeError(paren, "Argument must be an integer.");
+		}
+		return (int)number;
+	}
+
+	private static String string(Token paren, Object value) {
+		if (Interpreter.isString(value)) return value.toString();
+		throw new RuntimeError(paren, "Argument must be a string.");
+	}
+
+	// Called through the LoxCallable protocol, as by the bytecode VM, there
+	// is no token, so errors are reported at whatever line the caller has.
+
+	@Override
+	public int arity() {
+		return arity;
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object[] arguments) {
+		return call((Token)null, arguments);
+	}
+
+	@Override
+	public Object call(Interpreter interpreter) {
+		return call((Token)null);
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object a) {
+		return call((Token)null, a);
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object a, Object b) {
+		return call((Token)null, a, b);
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object a, Object b, Object c) {
+		return call((Token)null, a, b, c);
+	}
+
+	@Override
+	public String toString() {
+		return "<native fn>";
+	}
+}
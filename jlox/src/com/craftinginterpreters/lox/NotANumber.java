@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+// Thrown when an expression the interpreter evaluated as an unboxed number
+// turns out to produce something else. Carries the value it did produce.
+class NotANumber extends RuntimeException {
+	final Object value;
+
+	NotANumber(Object value) {
+		super(null, null, false, false);
+		this.value = value;
+	}
+}
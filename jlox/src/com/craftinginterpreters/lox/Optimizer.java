@@ -0,0 +1,353 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Rewrites a resolved program before it runs. Operators whose operands are
+// all literals are folded into a literal, reads of a local whose var
+// initializer is a literal and which is never assigned become that literal,
+// and if statements with a constant condition keep only the branch that
+// runs. Folding uses the interpreter's semantics and skips anything that
+// would be a runtime error, so that error is still reported when it runs.
+//
+// Nodes are only rebuilt when something under them changed, and rebuilt
+// nodes keep what the resolver stored on the originals.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+	private final Interpreter interpreter;
+	// Keyed by the original declaration, which is what resolved slots point to.
+	private final Map<Stmt.Var, Expr.Literal> constants = new IdentityHashMap<>();
+	// What an empty block, or a pruned if without an else, becomes where it
+	// can't just be dropped, like a loop body. It's flattened so running it
+	// doesn't push a frame.
+	private static final Stmt.Block NOTHING = new Stmt.Block(new ArrayList<>());
+
+	static {
+		NOTHING.isFlattened = true;
+	}
+
+	Optimizer(Interpreter interpreter) {
+		this.interpreter = interpreter;
+	}
+
+	List<Stmt> optimize(List<Stmt> statements) {
+		List<Stmt> result = new ArrayList<>(statements.size());
+		boolean changed = false;
+		for (Stmt statement : statements) {
+			Stmt optimized = optimize(statement);
+			changed |= optimized != statement;
+
+			// Pruned branches leave empty blocks, which do nothing.
+			if (optimized instanceof Stmt.Block &&
+					((Stmt.Block)optimized).statements.isEmpty()) {
+				changed = true;
+				continue;
+			}
+			result.add(optimized);
+		}
+
+		return changed ? result : statements;
+	}
+
+	private Stmt optimize(Stmt stmt) {
+		return stmt.accept(this);
+	}
+
+	private Expr optimize(Expr expr) {
+		return expr.accept(this);
+	}
+
+	private static boolean isLiteral(Expr expr) {
+		return expr instanceof Expr.Literal;
+	}
+
+	private static Object valueOf(Expr expr) {
+		return ((Expr.Literal)expr).value;
+	}
+
+	@Override
+	public Stmt visitBlockStmt(Stmt.Block stmt) {
+		List<Stmt> statements = optimize(stmt.statements);
+		if (statements.isEmpty()) return NOTHING;
+		if (statements == stmt.statements) return stmt;
+
+		Stmt.Block block = new Stmt.Block(statements);
+		block.isFlattened = stmt.isFlattened;
+		block.frameSize = stmt.frameSize;
+		return block;
+	}
+
+	@Override
+	public Stmt visitClassStmt(Stmt.Class stmt) {
+		List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+		boolean changed = false;
+		for (Stmt.Function method : stmt.methods) {
+			Stmt.Function optimized = (Stmt.Function)optimize(method);
+			changed |= optimized != method;
+			methods.add(optimized);
+		}
+
+		if (!changed) return stmt;
+
+		Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods);
+		klass.isBoxed = stmt.isBoxed;
+		return klass;
+	}
+
+	@Override
+	public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+		Expr expression = optimize(stmt.expression);
+		if (expression == stmt.expression) return stmt;
+		return new Stmt.Expression(expression);
+	}
+
+	@Override
+	public Stmt visitFunctionStmt(Stmt.Function stmt) {
+		List<Stmt> body = optimize(stmt.body);
+		if (body == stmt.body) return stmt;
+
+		Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+		function.isMethod = stmt.isMethod;
+		function.frameSize = stmt.frameSize;
+		function.upvalues = stmt.upvalues;
+		function.isBoxed = stmt.isBoxed;
+		function.boxedParams = stmt.boxedParams;
+		return function;
+	}
+
+	@Override
+	public Stmt visitIfStmt(Stmt.If stmt) {
+		Expr condition = optimize(stmt.condition);
+		Stmt thenBranch = optimize(stmt.thenBranch);
+		Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+
+		if (isLiteral(condition)) {
+			if (Interpreter.isTruthy(valueOf(condition))) return thenBranch;
+			if (elseBranch != null) return elseBranch;
+			return NOTHING;
+		}
+
+		if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+				elseBranch == stmt.elseBranch) {
+			return stmt;
+		}
+		return new Stmt.If(condition, thenBranch, elseBranch);
+	}
+
+	@Override
+	public Stmt visitPrintStmt(Stmt.Print stmt) {
+		Expr expression = optimize(stmt.expression);
+		if (expression == stmt.expression) return stmt;
+		return new Stmt.Print(expression);
+	}
+
+	@Override
+	public Stmt visitReturnStmt(Stmt.Return stmt) {
+		if (stmt.value == null) return stmt;
+
+		Expr value = optimize(stmt.value);
+		if (value == stmt.value) return stmt;
+
+		Stmt.Return optimized = new Stmt.Return(stmt.keyword, value);
+		optimized.isTailCall = stmt.isTailCall;
+		return optimized;
+	}
+
+	@Override
+	public Stmt visitVarStmt(Stmt.Var stmt) {
+		Expr initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+
+		if (!stmt.reassigned) {
+			if (initializer == null) {
+				constants.put(stmt, new Expr.Literal(null));
+			} else if (isLiteral(initializer)) {
+				constants.put(stmt, (Expr.Literal)initializer);
+			}
+		}
+
+		if (initializer == stmt.initializer) return stmt;
+
+		Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+		var.isBoxed = stmt.isBoxed;
+		return var;
+	}
+
+	@Override
+	public Stmt visitWhileStmt(Stmt.While stmt) {
+		Expr condition = optimize(stmt.condition);
+		Stmt body = optimize(stmt.body);
+		if (condition == stmt.condition && body == stmt.body) return stmt;
+		return new Stmt.While(condition, body);
+	}
+
+	@Override
+	public Expr visitAssignExpr(Expr.Assign expr) {
+		Expr value = optimize(expr.value);
+		if (value == expr.value) return expr;
+
+		Expr.Assign assign = new Expr.Assign(expr.name, value);
+		assign.slot = expr.slot;
+		assign.global = expr.global;
+		return assign;
+	}
+
+	@Override
+	public Expr visitBinaryExpr(Expr.Binary expr) {
+		Expr left = optimize(expr.left);
+		Expr right = optimize(expr.right);
+
+		// A literal has no side effects, so only the right operand matters.
+		if (expr.operator.type == TokenType.COMMA && isLiteral(left)) return right;
+
+		if (isLiteral(left) && isLiteral(right)) {
+			Object value = fold(expr.operator.type, valueOf(left), valueOf(right));
+			if (value != CANNOT_FOLD) return new Expr.Literal(value);
+		}
+
+		if (left == expr.left && right == expr.right) return expr;
+		return new Expr.Binary(left, expr.operator, right);
+	}
+
+	private static final Object CANNOT_FOLD = new Object();
+
+	private Object fold(TokenType operator, Object left, Object right) {
+		if (operator == TokenType.EQUAL_EQUAL) return Interpreter.isEqual(left, right);
+		if (operator == TokenType.BANG_EQUAL) return !Interpreter.isEqual(left, right);
+
+		if (operator == TokenType.PLUS && (left instanceof String || right instanceof String)) {
+			return interpreter.stringify(left) + interpreter.stringify(right);
+		}
+
+		if (!(left instanceof Double) || !(right instanceof Double)) return CANNOT_FOLD;
+		double a = (double)left;
+		double b = (double)right;
+
+		switch (operator) {
+			case PLUS: return a + b;
+			case MINUS: return a - b;
+			case STAR: return a * b;
+			case SLASH:
+				if (b == 0) return CANNOT_FOLD;
+				return a / b;
+			case GREATER: return a > b;
+			case GREATER_EQUAL: return a >= b;
+			case LESS: return a < b;
+			case LESS_EQUAL: return a <= b;
+		}
+
+		return CANNOT_FOLD;
+	}
+
+	@Override
+	public Expr visitCallExpr(Expr.Call expr) {
+		Expr callee = optimize(expr.callee);
+		List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+		boolean changed = callee != expr.callee;
+		for (Expr argument : expr.arguments) {
+			Expr optimized = optimize(argument);
+			changed |= optimized != argument;
+			arguments.add(optimized);
+		}
+
+		if (!changed) return expr;
+
+		Expr.Call call = new Expr.Call(callee, expr.paren, arguments);
+		call.intrinsic = expr.intrinsic;
+		return call;
+	}
+
+	@Override
+	public Expr visitGetExpr(Expr.Get expr) {
+		Expr object = optimize(expr.object);
+		if (object == expr.object) return expr;
+		return new Expr.Get(object, expr.name);
+	}
+
+	@Override
+	public Expr visitGroupingExpr(Expr.Grouping expr) {
+		// Grouping only matters to the parser.
+		return optimize(expr.expression);
+	}
+
+	@Override
+	public Expr visitLiteralExpr(Expr.Literal expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitLogicalExpr(Expr.Logical expr) {
+		Expr left = optimize(expr.left);
+		Expr right = optimize(expr.right);
+
+		if (isLiteral(left)) {
+			boolean truthy = Interpreter.isTruthy(valueOf(left));
+			boolean shortCircuits = expr.operator.type == TokenType.OR ? truthy : !truthy;
+			return shortCircuits ? left : right;
+		}
+
+		if (left == expr.left && right == expr.right) return expr;
+		return new Expr.Logical(left, expr.operator, right);
+	}
+
+	@Override
+	public Expr visitSetExpr(Expr.Set expr) {
+		Expr object = optimize(expr.object);
+		Expr value = optimize(expr.value);
+		if (object == expr.object && value == expr.value) return expr;
+		return new Expr.Set(object, expr.name, value);
+	}
+
+	@Override
+	public Expr visitSuperExpr(Expr.Super expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitThisExpr(Expr.This expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitUnaryExpr(Expr.Unary expr) {
+		Expr right = optimize(expr.right);
+
+		if (isLiteral(right)) {
+			Object value = valueOf(right);
+			if (expr.operator.type == TokenType.BANG) {
+				return new Expr.Literal(!Interpreter.isTruthy(value));
+			}
+			if (value instanceof Double) return new Expr.Literal(-(double)value);
+		}
+
+		if (right == expr.right) return expr;
+		return new Expr.Unary(expr.operator, right);
+	}
+
+	@Override
+	public Expr visitConditionalExpr(Expr.Conditional expr) {
+		Expr condition = optimize(expr.condition);
+		Expr thenBranch = optimize(expr.thenBranch);
+		Expr elseBranch = optimize(expr.elseBranch);
+
+		if (isLiteral(condition)) {
+			return Interpreter.isTruthy(valueOf(condition)) ? thenBranch : elseBranch;
+		}
+
+		if (condition == expr.condition && thenBranch == expr.thenBranch &&
+				elseBranch == expr.elseBranch) {
+			return expr;
+		}
+		return new Expr.Conditional(condition, thenBranch, elseBranch);
+	}
+
+	@Override
+	public Expr visitVariableExpr(Expr.Variable expr) {
+		if (expr.slot != null && expr.slot.declaration != null) {
+			Expr.Literal constant = constants.get(expr.slot.declaration);
+			if (constant != null) return constant;
+		}
+
+		return expr;
+	}
+}
@@ -0,0 +1,126 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Where print statements send their lines. Lines may be held back until
+// flush(), so whoever runs the interpreter flushes before exiting and before
+// writing anything else the user should see in order, like an error.
+interface Output {
+	void println(String line);
+	void flush();
+
+	// The default: a large buffer in front of a stream. A write that fails,
+	// when the buffer fills or on flush(), throws an UncheckedIOException.
+	class Buffered implements Output {
+		private static final int SIZE = 1 << 16;
+
+		private final BufferedWriter writer;
+
+		Buffered(OutputStream stream) {
+			writer = new BufferedWriter(new OutputStreamWriter(stream, Charset.defaultCharset()), SIZE);
+		}
+
+		@Override
+		public void println(String line) {
+			try {
+				writer.write(line);
+				writer.newLine();
+			} catch (IOException error) {
+				throw new UncheckedIOException(error);
+			}
+		}
+
+		@Override
+		public void flush() {
+			try {
+				writer.flush();
+			} catch (IOException error) {
+				throw new UncheckedIOException(error);
+			}
+		}
+	}
+
+	// Hands lines to another output on a writer thread, a batch at a time,
+	// so a slow sink doesn't hold up the script.
+	class Async implements Output {
+		private static final int BATCH = 1024;
+
+		private final Output sink;
+		private final ExecutorService writer = Executors.newSingleThreadExecutor(task -> {
+			Thread thread = new Thread(task, "lox-output");
+			thread.setDaemon(true);
+			return thread;
+		});
+		private List<String> batch = new ArrayList<>(BATCH);
+		private volatile Throwable failure;
+
+		Async(Output sink) {
+			this.sink = sink;
+		}
+
+		@Override
+		public void println(String line) {
+			batch.add(line);
+			if (batch.size() == BATCH) handOff();
+		}
+
+		private void handOff() {
+			List<String> lines = batch;
+			batch = new ArrayList<>(BATCH);
+			write(() -> {
+				for (String line : lines) sink.println(line);
+			});
+		}
+
+		// Runs a task on the writer. What the sink throws is kept for the
+		// next flush() to throw on the script's thread, and the lines after
+		// it are dropped until then.
+		private Future<?> write(Runnable task) {
+			return writer.submit(() -> {
+				if (failure != null) return;
+				try {
+					task.run();
+				} catch (Throwable error) {
+					failure = error;
+				}
+			});
+		}
+
+		@Override
+		public void flush() {
+			if (!batch.isEmpty()) handOff();
+
+			// The writer runs tasks in order, so this waits for every line.
+			try {
+				write(sink::flush).get();
+			} catch (InterruptedException error) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException error) {
+				// write() catches anything the task throws.
+				throw new IllegalStateException(error.getCause());
+			}
+
+			// Thrown as the sink would have thrown it here, so a failed write
+			// reaches Lox.runFile as an UncheckedIOException.
+			Throwable error = failure;
+			if (error == null) return;
+			failure = null;
+			if (error instanceof IOException) throw new UncheckedIOException((IOException)error);
+			if (error instanceof RuntimeException) throw (RuntimeException)error;
+			if (error instanceof Error) throw (Error)error;
+			throw new IllegalStateException(error);
+		}
+	}
+}
@@ -9,10 +9,14 @@ import static com.craftinginterpreters.lox.TokenType.*;
 class Parser {
 	private static class ParseError extends RuntimeException {}
 
-	private final List<Token> tokens;
+	private final Tokens tokens;
 	private int current = 0;
+	// Syntax errors are reported once parsing is done. A script is scanned
+	// as it's parsed, and this way every error the scanner finds still comes
+	// first, as it would if the script were scanned before parsing.
+	private final List<Runnable> errors = new ArrayList<>();
 
-	Parser(List<Token> tokens) {
+	Parser(Tokens tokens) {
 		this.tokens = tokens;
 	}
 
@@ -22,6 +26,7 @@ class Parser {
 			statements.add(declaration());
 		}
 
+		reportErrors();
 		return statements;
 	}
 
@@ -212,6 +217,8 @@ class Parser {
 			return expr;
 		} catch (ParseError error) {
 			return null;
+		} finally {
+			reportErrors();
 		}
 	}
 
@@ -395,7 +402,7 @@ class Parser {
 		if (match(NIL)) return new Expr.Literal(null);
 
 		if (match(NUMBER, STRING)) {
-			return new Expr.Literal(previous().literal);
+			return new Expr.Literal(tokens.literal(current - 1));
 		}
 
 		if (match(SUPER)) {
@@ -458,18 +465,21 @@ class Parser {
 
 	private boolean check(TokenType type) {
 		if (isAtEnd()) return false;
-		return peek().type == type;
+		return tokens.type(current) == type;
 	}
 
-	private Token advance() {
+	private void advance() {
 		if (!isAtEnd()) current++;
-		return previous();
+		// Only the previous token is ever looked back at.
+		tokens.release(current - 1);
 	}
 
 	private boolean isAtEnd() {
-		return peek().type == EOF;
+		return tokens.type(current) == EOF;
 	}
 
+	// These make a Token, so they're only for tokens the tree or an error
+	// message keeps.
 	private Token peek() {
 		return tokens.get(current);
 	}
@@ -479,23 +489,31 @@ class Parser {
 	}
 
 	private Token consume(TokenType type, String message) {
-		if (check(type)) return advance();
+		if (check(type)) {
+			advance();
+			return previous();
+		}
 
 		throw error(peek(), message);
 	}
 
 	private ParseError error(Token token, String message) {
-		Lox.error(token, message);
+		errors.add(() -> Lox.error(token, message));
 		return new ParseError();
 	}
 
+	private void reportErrors() {
+		for (Runnable error : errors) error.run();
+		errors.clear();
+	}
+
 	private void synchronize() {
 		advance();
 
 		while (!isAtEnd()) {
-			if (previous().type == SEMICOLON) return;
+			if (tokens.type(current - 1) == SEMICOLON) return;
 
-			switch (peek().type) {
+			switch (tokens.type(current)) {
 				case CLASS:
 				case FUN:
 				case VAR:
@@ -1,17 +1,21 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-	private final Interpreter interpreter;
-	private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+	// Where names that aren't local get their global slot numbers.
+	private final Environment globals;
+	// The frame locals are being declared in; null at the top level, where
+	// names are global.
+	private Frame current = null;
 	private FunctionType currentFunction = FunctionType.NONE;
 
-	Resolver(Interpreter interpreter) {
-		this.interpreter = interpreter;
+	Resolver(Environment globals) {
+		this.globals = globals;
 	}
 
 	private enum FunctionType {
@@ -29,50 +33,257 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
 	private ClassType currentClass = ClassType.NONE;
 
+	// The locals one Environment holds at runtime: those of a function's
+	// body, or of a block or a class's "super" at the top level. Blocks
+	// inside a frame get no Environment of their own: their locals take the
+	// frame's next slots and hand them back when the block ends, so entering
+	// one allocates nothing. Following clox, a function refers to a local of
+	// a frame around it through one of its upvalues, which the function
+	// copies when it's created, so no frame outlives its execution.
+	private static class Frame {
+		final Frame enclosing;
+		// Null unless the frame is a function's.
+		final Stmt.Function function;
+		final Stack<Scope> scopes = new Stack<>();
+		final List<Upvalue> upvalues = new ArrayList<>();
+		// The local each upvalue ends up at.
+		final List<Local> captured = new ArrayList<>();
+		// The next free slot and the most slots in use at once.
+		int count = 0;
+		int size = 0;
+
+		Frame(Frame enclosing, Stmt.Function function) {
+			this.enclosing = enclosing;
+			this.function = function;
+		}
+
+		Local find(String name) {
+			for (int i = scopes.size() - 1; i >= 0; i--) {
+				Local local = scopes.get(i).locals.get(name);
+				if (local != null) return local;
+			}
+
+			return null;
+		}
+	}
+
+	private static class Scope {
+		final Map<String, Local> locals = new HashMap<>();
+		// Where this scope's locals start in its frame.
+		final int base;
+
+		Scope(int base) {
+			this.base = base;
+		}
+	}
+
+	// A local's slot is its declaration order within its frame, matching the
+	// order the interpreter defines values into the frame.
+	private static class Local {
+		final int slot;
+		boolean defined = false;
+		// The var, fun or class statement that declared it, if any.
+		Stmt declaration;
+		// Which parameter it is, or -1.
+		int parameter = -1;
+		boolean isCaptured = false;
+		boolean isReassigned = false;
+		// Every Slot that refers to it, for boxing.
+		final List<Slot> references = new ArrayList<>();
+
+		Local(int slot) {
+			this.slot = slot;
+		}
+	}
+
+	// Where the function gets an upvalue from when it's created: a slot of
+	// the frame around it, or one of that frame's own upvalues.
+	static class Upvalue {
+		final int index;
+		final boolean isLocal;
+
+		Upvalue(int index, boolean isLocal) {
+			this.index = index;
+			this.isLocal = isLocal;
+		}
+	}
+
+	// Where a resolved local lives at runtime: a slot of the current frame,
+	// or one of its upvalues. Stored on the node that refers to it; a null
+	// slot means the name is global, and the node has the number of its
+	// global slot instead. A captured local that's also assigned is boxed,
+	// so the frame and its closures share it. The Optimizer uses declaration
+	// to find the initializer of a var that is never reassigned.
+	static class Slot {
+		final int index;
+		final boolean isUpvalue;
+		final Stmt.Var declaration;
+		boolean isBoxed = false;
+
+		Slot(int index, boolean isUpvalue, Stmt.Var declaration) {
+			this.index = index;
+			this.isUpvalue = isUpvalue;
+			this.declaration = declaration;
+		}
+
+		boolean isPlainLocal() {
+			return !isUpvalue && !isBoxed;
+		}
+	}
+
 	void resolve(List<Stmt> statements) {
 		for (Stmt statement : statements) {
 			resolve(statement);
 		}
 	}
 
+	private void beginFrame(Stmt.Function function) {
+		current = new Frame(current, function);
+		beginScope();
+	}
+
+	private void endFrame() {
+		endScope();
+		current = current.enclosing;
+	}
+
 	private void beginScope() {
-		scopes.push(new HashMap<String, Boolean>());
+		current.scopes.push(new Scope(current.count));
 	}
 
 	private void endScope() {
-		scopes.pop();
+		Scope scope = current.scopes.pop();
+		for (Local local : scope.locals.values()) {
+			// A function or class can be captured by its own methods or body
+			// before its name has a value, so its name is boxed too.
+			if (local.isCaptured && (local.isReassigned ||
+					local.declaration instanceof Stmt.Function ||
+					local.declaration instanceof Stmt.Class)) {
+				box(local);
+			}
+		}
+		current.count = scope.base;
+	}
+
+	private void box(Local local) {
+		for (Slot slot : local.references) {
+			slot.isBoxed = true;
+		}
+
+		if (local.declaration instanceof Stmt.Var) {
+			((Stmt.Var)local.declaration).isBoxed = true;
+		} else if (local.declaration instanceof Stmt.Function) {
+			((Stmt.Function)local.declaration).isBoxed = true;
+		} else if (local.declaration instanceof Stmt.Class) {
+			((Stmt.Class)local.declaration).isBoxed = true;
+		} else if (local.parameter != -1) {
+			Stmt.Function function = current.function;
+			if (function.boxedParams == null) {
+				function.boxedParams = new boolean[function.params.size()];
+			}
+			function.boxedParams[local.parameter] = true;
+		}
 	}
 
-	private void declare(Token name) {
-		if (scopes.isEmpty()) return;
+	private Local declare(Token name) {
+		if (current == null) return null;
 
-		Map<String, Boolean> scope = scopes.peek();
-		if (scope.containsKey(name.lexeme)) {
+		Scope scope = current.scopes.peek();
+		if (scope.locals.containsKey(name.lexeme)) {
 			Lox.error(name, "Already a variable with this name in this scope.");
 		}
 
-		scope.put(name.lexeme, false);
+		return add(name.lexeme);
 	}
 
 	private void define(Token name) {
-		if (scopes.isEmpty()) return;
-		scopes.peek().put(name.lexeme, true);
+		if (current == null) return;
+		current.scopes.peek().locals.get(name.lexeme).defined = true;
 	}
 
-	private void resolveLocal(Expr expr, Token name) {
-		for (int i = scopes.size() - 1; i >= 0; i--) {
-			if (scopes.get(i).containsKey(name.lexeme)) {
-				interpreter.resolve(expr, scopes.size() - 1 - i);
-				return;
-			}
+	private void defineImplicit(String name) {
+		add(name).defined = true;
+	}
+
+	private Local add(String name) {
+		Local local = new Local(current.count++);
+		current.size = Math.max(current.size, current.count);
+		current.scopes.peek().locals.put(name, local);
+		return local;
+	}
+
+	private Slot resolveLocal(String name, boolean isAssignment) {
+		if (current == null) return null;
+
+		int index;
+		boolean isUpvalue = false;
+		Local local = current.find(name);
+		if (local != null) {
+			index = local.slot;
+		} else {
+			index = resolveUpvalue(current, name);
+			if (index == -1) return null;
+
+			local = current.captured.get(index);
+			isUpvalue = true;
 		}
+
+		Stmt.Var declaration = null;
+		if (local.declaration instanceof Stmt.Var) {
+			declaration = (Stmt.Var)local.declaration;
+		}
+
+		if (isAssignment) {
+			local.isReassigned = true;
+			if (declaration != null) declaration.reassigned = true;
+		}
+
+		Slot slot = new Slot(index, isUpvalue, declaration);
+		local.references.add(slot);
+		return slot;
+	}
+
+	private int resolveUpvalue(Frame frame, String name) {
+		if (frame.enclosing == null) return -1;
+
+		Local local = frame.enclosing.find(name);
+		if (local != null) {
+			local.isCaptured = true;
+			return addUpvalue(frame, local.slot, true, local);
+		}
+
+		int upvalue = resolveUpvalue(frame.enclosing, name);
+		if (upvalue != -1) {
+			return addUpvalue(frame, upvalue, false, frame.enclosing.captured.get(upvalue));
+		}
+
+		return -1;
+	}
+
+	private int addUpvalue(Frame frame, int index, boolean isLocal, Local local) {
+		int existing = frame.captured.indexOf(local);
+		if (existing != -1) return existing;
+
+		frame.upvalues.add(new Upvalue(index, isLocal));
+		frame.captured.add(local);
+		return frame.upvalues.size() - 1;
 	}
 
 	@Override
 	public Void visitBlockStmt(Stmt.Block stmt) {
-		beginScope();
-		resolve(stmt.statements);
-		endScope();
+		// Only a block at the top level, where locals would otherwise be
+		// globals, needs a frame of its own.
+		stmt.isFlattened = current != null;
+		if (stmt.isFlattened) {
+			beginScope();
+			resolve(stmt.statements);
+			endScope();
+		} else {
+			beginFrame(null);
+			resolve(stmt.statements);
+			stmt.frameSize = current.size;
+			endFrame();
+		}
 		return null;
 	}
 
@@ -81,7 +292,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		ClassType enclosingClass = currentClass;
 		currentClass = ClassType.CLASS;
 
-		declare(stmt.name);
+		Local local = declare(stmt.name);
+		if (local != null) local.declaration = stmt;
 		define(stmt.name);
 
 		if (stmt.superclass != null) {
@@ -93,13 +305,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 			Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
 		}
 
-		if (stmt.superclass != null) {
+		// "super" goes in the frame the class is declared in, or a frame of
+		// its own at the top level.
+		boolean superFrame = stmt.superclass != null && current == null;
+		if (superFrame) {
+			beginFrame(null);
+		} else if (stmt.superclass != null) {
 			beginScope();
-			scopes.peek().put("super", true);
 		}
-
-		beginScope();
-		scopes.peek().put("this", true);
+		if (stmt.superclass != null) defineImplicit("super");
 
 		for (Stmt.Function method : stmt.methods) {
 			FunctionType declaration = FunctionType.METHOD;
@@ -110,9 +324,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 			resolveFunction(method, declaration);
 		}
 
-		endScope();
-
-		if (stmt.superclass != null) endScope();
+		if (superFrame) {
+			endFrame();
+		} else if (stmt.superclass != null) {
+			endScope();
+		}
 
 		currentClass = enclosingClass;
 		return null;
@@ -144,6 +360,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 			}
 
 			resolve(stmt.value);
+			stmt.isTailCall = stmt.value instanceof Expr.Call;
 		}
 
 		return null;
@@ -151,7 +368,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
 	@Override
 	public Void visitFunctionStmt(Stmt.Function stmt) {
-		declare(stmt.name);
+		Local local = declare(stmt.name);
+		if (local != null) local.declaration = stmt;
 		define(stmt.name);
 
 		resolveFunction(stmt, FunctionType.FUNCTION);
@@ -160,7 +378,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
 	@Override
 	public Void visitVarStmt(Stmt.Var stmt) {
-		declare(stmt.name);
+		Local local = declare(stmt.name);
+		if (local != null) local.declaration = stmt;
 		if (stmt.initializer != null) {
 			resolve(stmt.initializer);
 		}
@@ -184,7 +403,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitAssignExpr(Expr.Assign expr) {
 		resolve(expr.value);
-		resolveLocal(expr, expr.name);
+		expr.slot = resolveLocal(expr.name.lexeme, true);
+		if (expr.slot == null) expr.global = globals.intern(expr.name.lexeme);
 		return null;
 	}
 
@@ -211,6 +431,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 			resolve(argument);
 		}
 
+		// A global can be reassigned at any time, so whoever runs the call
+		// still checks the callee is this native before using it.
+		if (expr.callee instanceof Expr.Variable && ((Expr.Variable)expr.callee).slot == null) {
+			Native function = Native.named(((Expr.Variable)expr.callee).name.lexeme);
+			if (function != null && function.arity() == expr.arguments.size()) {
+				expr.intrinsic = function;
+			}
+		}
+
 		return null;
 	}
 
@@ -254,7 +483,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 			Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
 		}
 
-		resolveLocal(expr, expr.keyword);
+		expr.slot = resolveLocal("super", false);
+		expr.thisSlot = resolveLocal("this", false);
 		return null;
 	}
 
@@ -265,7 +495,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 			return null;
 		}
 
-		resolveLocal(expr, expr.keyword);
+		expr.slot = resolveLocal("this", false);
 		return null;
 	}
 
@@ -277,11 +507,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
 	@Override
 	public Void visitVariableExpr(Expr.Variable expr) {
-		if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+		if (current != null && current.scopes.peek().locals.containsKey(expr.name.lexeme) &&
+				!current.scopes.peek().locals.get(expr.name.lexeme).defined) {
 			Lox.error(expr.name, "Can't read local variable in its own initializer.");
 		}
 
-		resolveLocal(expr, expr.name);
+		expr.slot = resolveLocal(expr.name.lexeme, false);
+		if (expr.slot == null) expr.global = globals.intern(expr.name.lexeme);
 		return null;
 	}
 
@@ -293,17 +525,28 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		FunctionType enclosingFunction = currentFunction;
 		currentFunction = type;
 
-		beginScope();
-		for (Token param : function.params) {
-			declare(param);
+		beginFrame(function);
+		// A method's receiver is the first slot of its own frame, so calling
+		// a method needs no environment just to hold "this".
+		if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+			defineImplicit("this");
+			function.isMethod = true;
+		}
+		for (int i = 0; i < function.params.size(); i++) {
+			Token param = function.params.get(i);
+			declare(param).parameter = i;
 			define(param);
 		}
 		resolve(function.body);
-		endScope();
+		Frame frame = current;
+		endFrame();
+		function.frameSize = frame.size;
+		function.upvalues = frame.upvalues.toArray(new Upvalue[0]);
 		currentFunction = enclosingFunction;
 	}
 
-	private void resolve(Expr expr) {
+	// Also used on an expression the REPL evaluates on its own.
+	void resolve(Expr expr) {
 		expr.accept(this);
 	}
 }
@@ -1,10 +1,15 @@
 package com.craftinginterpreters.lox;
 
-class Return extends RuntimeException {
+// How a statement that returns from its function completes. Executing a
+// statement yields null when it completes normally and one of these when it
+// hits a return, and enclosing statements pass it up until it reaches the
+// function being called.
+class Return {
+	static final Return NIL = new Return(null);
+
 	final Object value;
 
 	Return(Object value) {
-		super(null, null, false, false);
 		this.value = value;
 	}
 }
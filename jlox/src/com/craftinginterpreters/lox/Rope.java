@@ -0,0 +1,50 @@
+package com.craftinginterpreters.lox;
+
+// A long string made by concatenation. Building a string with "s = s + x"
+// in a loop would copy all of s each time around, so instead a rope is the
+// first length characters of a StringBuilder it can share with the ropes it
+// was made from. Appending to the rope whose text runs to the end of the
+// builder just appends to the builder; appending to any other rope copies
+// its text into a new builder first. Either way no rope's text ever changes.
+//
+// The text only becomes a String when something needs one, such as
+// printing or comparing it.
+class Rope {
+	// Concatenations shorter than this aren't worth a rope.
+	static final int MIN_LENGTH = 64;
+
+	private final StringBuilder builder;
+	private final int length;
+	private String flattened;
+
+	private Rope(StringBuilder builder) {
+		this.builder = builder;
+		this.length = builder.length();
+	}
+
+	static Object concat(String left, String right) {
+		int length = left.length() + right.length();
+		if (length < MIN_LENGTH) return left + right;
+
+		StringBuilder builder = new StringBuilder(length * 2);
+		builder.append(left).append(right);
+		return new Rope(builder);
+	}
+
+	Rope append(String text) {
+		if (builder.length() == length) {
+			builder.append(text);
+			return new Rope(builder);
+		}
+
+		StringBuilder copy = new StringBuilder((length + text.length()) * 2);
+		copy.append(builder, 0, length).append(text);
+		return new Rope(copy);
+	}
+
+	@Override
+	public String toString() {
+		if (flattened == null) flattened = builder.substring(0, length);
+		return flattened;
+	}
+}
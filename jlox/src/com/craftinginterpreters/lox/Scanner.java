@@ -5,57 +5,232 @@ package com.craftinginterpreters.lox;
 // create a token for ea lexeme
 // handle errors
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import static com.craftinginterpreters.lox.TokenType.*; // static import, avoid typing "TokenType" all over
 
 class Scanner {
-	private final String source;
-	private final List<Token> tokens = new ArrayList<>(); // ArrayList<>, infers <Token> from the type declaration List<Token>
+	// The source, or the part of it read so far that's still needed: from
+	// the start of the token being scanned up to limit.
+	private char[] source;
+	private int limit;
+	// Where the rest of the source comes from, if it's being read as it's
+	// scanned.
+	private Reader reader;
+	private final Tokens tokens = new Tokens(this);
 	private int start = 0;
 	private int current = 0;
 	private int line = 1;
+	private final Symbols symbols = new Symbols();
 
-	private static final Map<String, TokenType> keywords;
+	// How many tokens scanMore() scans.
+	private static final int BATCH = 128;
+
+	// The fewest characters of the source a scanner gets when scanning in
+	// parallel. Above that, the source is split into a few chunks a thread.
+	private static final int MIN_CHUNK = 1 << 12;
+
+	// A chunk scanned in parallel holds on to its errors until it's known
+	// where its lines start, and whether it was scanned at all correctly.
+	private static class ScanError {
+		final int line;
+		final String message;
+
+		ScanError(int line, String message) {
+			this.line = line;
+			this.message = message;
+		}
+	}
+
+	private final List<ScanError> errors;
+	private boolean endsInString = false;
+
+	// Every token of these types has the same text, so none is copied out of
+	// the source for them.
+	private static final Map<TokenType, String> lexemes;
 	static {
-		keywords = new HashMap<>();
-		keywords.put("and",		AND);
-		keywords.put("class",	CLASS);
-		keywords.put("else",	ELSE);
-		keywords.put("false",	FALSE);
-		keywords.put("for",		FOR);
-		keywords.put("fun",		FUN);
-		keywords.put("if",		IF);
-		keywords.put("nil",		NIL);
-		keywords.put("or",		OR);
-		keywords.put("print",	PRINT);
-		keywords.put("return",	RETURN);
-		keywords.put("super",	SUPER);
-		keywords.put("this",	THIS);
-		keywords.put("true",	TRUE);
-		keywords.put("var",		VAR);
-		keywords.put("while",	WHILE);
+		lexemes = new EnumMap<>(TokenType.class);
+		lexemes.put(LEFT_PAREN,		"(");
+		lexemes.put(RIGHT_PAREN,	")");
+		lexemes.put(LEFT_BRACE,		"{");
+		lexemes.put(RIGHT_BRACE,	"}");
+		lexemes.put(COMMA,			",");
+		lexemes.put(DOT,			".");
+		lexemes.put(MINUS,			"-");
+		lexemes.put(PLUS,			"+");
+		lexemes.put(SEMICOLON,		";");
+		lexemes.put(SLASH,			"/");
+		lexemes.put(STAR,			"*");
+		lexemes.put(QUESTION,		"?");
+		lexemes.put(COLON,			":");
+		lexemes.put(BANG,			"!");
+		lexemes.put(BANG_EQUAL,		"!=");
+		lexemes.put(EQUAL,			"=");
+		lexemes.put(EQUAL_EQUAL,	"==");
+		lexemes.put(GREATER,		">");
+		lexemes.put(GREATER_EQUAL,	">=");
+		lexemes.put(LESS,			"<");
+		lexemes.put(LESS_EQUAL,		"<=");
+		lexemes.put(AND,			"and");
+		lexemes.put(CLASS,			"class");
+		lexemes.put(ELSE,			"else");
+		lexemes.put(FALSE,			"false");
+		lexemes.put(FOR,			"for");
+		lexemes.put(FUN,			"fun");
+		lexemes.put(IF,				"if");
+		lexemes.put(NIL,			"nil");
+		lexemes.put(OR,				"or");
+		lexemes.put(PRINT,			"print");
+		lexemes.put(RETURN,			"return");
+		lexemes.put(SUPER,			"super");
+		lexemes.put(THIS,			"this");
+		lexemes.put(TRUE,			"true");
+		lexemes.put(VAR,			"var");
+		lexemes.put(WHILE,			"while");
 	}
 
 	Scanner(String source) {
+		this.source = source.toCharArray();
+		this.limit = this.source.length;
+		this.errors = null;
+	}
+
+	// Reads the source only as tokens are asked for, a buffer at a time.
+	Scanner(Reader reader) {
+		this.source = new char[8192];
+		this.limit = 0;
+		this.reader = reader;
+		this.errors = null;
+	}
+
+	// A chunk of a source scanned in parallel. Its lines are numbered from 1.
+	private Scanner(char[] source, int from, int to) {
 		this.source = source;
+		this.start = from;
+		this.current = from;
+		this.limit = to;
+		this.errors = new ArrayList<>();
+	}
+
+	// Scans a large source on the fork/join pool, giving the same tokens and
+	// errors as scanTokens(). The source is split into chunks that end at a
+	// newline, and each chunk is scanned as if it doesn't start inside a
+	// string. Only a chunk that ends inside a string shows that wasn't so,
+	// and then the source is scanned again in order.
+	static Tokens scanInParallel(String source) {
+		char[] text = source.toCharArray();
+		int size = Math.max(MIN_CHUNK,
+			text.length / (4 * ForkJoinPool.getCommonPoolParallelism()));
+		List<Scanner> chunks = new ArrayList<>();
+		for (int from = 0; from < text.length; ) {
+			// Ending after a newline, no token runs past the chunk but a
+			// string, and nothing is looked ahead at past it.
+			int to = Math.min(from + size, text.length);
+			while (to < text.length && text[to - 1] != '\n') to++;
+
+			chunks.add(new Scanner(text, from, to));
+			from = to;
+		}
+
+		chunks.parallelStream().forEach(Scanner::scanChunk);
+
+		for (int i = 0; i < chunks.size() - 1; i++) {
+			if (chunks.get(i).endsInString) return new Scanner(source).scanTokens();
+		}
+
+		Tokens tokens = new Tokens(null);
+		int lines = 0;
+		for (Scanner chunk : chunks) {
+			tokens.append(chunk.tokens, lines);
+			for (ScanError error : chunk.errors) {
+				Lox.error(error.line + lines, error.message);
+			}
+			lines += chunk.line - 1;
+		}
+
+		tokens.add(EOF, "", null, lines + 1);
+		return tokens;
+	}
+
+	private void scanChunk() {
+		while (!isAtEnd()) {
+			start = current;
+			scanToken();
+		}
 	}
 
-	List<Token> scanTokens() {
+	Tokens scanTokens() {
 		while (!isAtEnd()) {
 			start = current;
 			scanToken();
 		}
 
-		tokens.add(new Token(EOF, "", null, line));
+		tokens.add(EOF, "", null, line);
+		return tokens;
+	}
+
+	// The tokens, scanned as the parser reaches them. The parser lets go of
+	// tokens it's past, so a script read from a Reader never has to be all
+	// in memory.
+	Tokens tokens() {
 		return tokens;
 	}
 
+	// Scans at least one more token, up to a batch of them, or adds EOF at
+	// the end. Scanning a batch at a time keeps the scanner's loop hot.
+	void scanMore() {
+		int goal = tokens.size() + BATCH;
+		while (tokens.size() < goal) {
+			if (isAtEnd()) {
+				tokens.add(EOF, "", null, line);
+				return;
+			}
+
+			start = current;
+			scanToken();
+		}
+	}
+
 	private boolean isAtEnd() {
-		return current >= source.length();
+		return current >= limit && !fill();
+	}
+
+	// Reads more of the source after what's there, first moving the text of
+	// the token being scanned to the front of the buffer. Returns false at
+	// the end of the source, and otherwise reads at least one character.
+	private boolean fill() {
+		if (reader == null) return false;
+
+		if (start > 0) {
+			System.arraycopy(source, start, source, 0, limit - start);
+			limit -= start;
+			current -= start;
+			start = 0;
+		}
+		if (limit == source.length) source = Arrays.copyOf(source, limit * 2);
+
+		int read;
+		try {
+			read = reader.read(source, limit, source.length - limit);
+		} catch (IOException error) {
+			throw new UncheckedIOException(error);
+		}
+
+		if (read == -1) {
+			reader = null;
+			return false;
+		}
+
+		limit += read;
+		return true;
 	}
 
 	private void scanToken() {
@@ -109,14 +284,22 @@ class Scanner {
 				} else if (isAlpha(c)) {
 					identifier();
 				} else {
-					Lox.error(line, "Unexpected character.");
+					error("Unexpected character.");
 				}
 				break;
 		}
 	}
 
+	private void error(String message) {
+		if (errors != null) {
+			errors.add(new ScanError(line, message));
+		} else {
+			Lox.error(line, message);
+		}
+	}
+
 	private char advance() {
-		return source.charAt(current++);
+		return source[current++];
 	}
 
 	private void addToken(TokenType type) {
@@ -125,13 +308,14 @@ class Scanner {
 	}
 
 	private void addToken(TokenType type, Object literal) {
-		String text = source.substring(start, current);
-		tokens.add(new Token(type, text, literal, line));
+		String text = lexemes.get(type);
+		if (text == null) text = new String(source, start, current - start);
+		tokens.add(type, text, literal, line);
 	}
 
 	private boolean match(char expected) {
 		if (isAtEnd()) return false;
-		if (source.charAt(current) != expected) return false;
+		if (source[current] != expected) return false;
 
 		current++;
 		return true;
@@ -139,7 +323,7 @@ class Scanner {
 
 	private char peek() {
 		if (isAtEnd()) return '\0';
-		return source.charAt(current);
+		return source[current];
 	}
 
 	private void string() {
@@ -149,7 +333,8 @@ class Scanner {
 		}
 
 		if (isAtEnd()) {
-			Lox.error(line, "Unterminated string.");
+			endsInString = true;
+			error("Unterminated string.");
 			return;
 		}
 
@@ -157,7 +342,7 @@ class Scanner {
 		advance();
 
 		// Trim surrounding quotes
-		String value = source.substring(start + 1, current - 1);
+		String value = new String(source, start + 1, current - start - 2);
 		addToken(STRING, value);
 	}
 
@@ -175,21 +360,77 @@ class Scanner {
 			while (isDigit(peek())) advance();
 		}
 
-		addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+		String text = new String(source, start, current - start);
+		tokens.add(NUMBER, text, Double.parseDouble(text), line);
 	}
 
 	private char peekNext() {
-		if (current + 1 >= source.length()) return '\0';
-		return source.charAt(current + 1);
+		while (current + 1 >= limit) {
+			if (!fill()) return '\0';
+		}
+		return source[current + 1];
 	}
 
 	private void identifier() {
 		while (isAlphaNumeric(peek())) advance();
 
-		String text = source.substring(start, current);
-		TokenType type = keywords.get(text);
-		if (type == null) type = IDENTIFIER;
-		addToken(type);
+		// Keywords are told apart from names in the source itself, so only
+		// names are hashed and interned. Literals aren't: a script can have
+		// any number of different ones, and the table lives as long as the
+		// scanner.
+		TokenType type = identifierType();
+		if (type == IDENTIFIER) {
+			tokens.add(IDENTIFIER, symbols.intern(source, start, current), null, line);
+		} else {
+			addToken(type);
+		}
+	}
+
+	// Like clox, switches on the first letter, and the second where
+	// keywords share one, then checks the rest of the one keyword left.
+	private TokenType identifierType() {
+		switch (source[start]) {
+			case 'a': return checkKeyword(1, "nd", AND);
+			case 'c': return checkKeyword(1, "lass", CLASS);
+			case 'e': return checkKeyword(1, "lse", ELSE);
+			case 'f':
+				if (current - start > 1) {
+					switch (source[start + 1]) {
+						case 'a': return checkKeyword(2, "lse", FALSE);
+						case 'o': return checkKeyword(2, "r", FOR);
+						case 'u': return checkKeyword(2, "n", FUN);
+					}
+				}
+				break;
+			case 'i': return checkKeyword(1, "f", IF);
+			case 'n': return checkKeyword(1, "il", NIL);
+			case 'o': return checkKeyword(1, "r", OR);
+			case 'p': return checkKeyword(1, "rint", PRINT);
+			case 'r': return checkKeyword(1, "eturn", RETURN);
+			case 's': return checkKeyword(1, "uper", SUPER);
+			case 't':
+				if (current - start > 1) {
+					switch (source[start + 1]) {
+						case 'h': return checkKeyword(2, "is", THIS);
+						case 'r': return checkKeyword(2, "ue", TRUE);
+					}
+				}
+				break;
+			case 'v': return checkKeyword(1, "ar", VAR);
+			case 'w': return checkKeyword(1, "hile", WHILE);
+		}
+
+		return IDENTIFIER;
+	}
+
+	private TokenType checkKeyword(int offset, String rest, TokenType type) {
+		if (current - start != offset + rest.length()) return IDENTIFIER;
+
+		for (int i = 0; i < rest.length(); i++) {
+			if (source[start + offset + i] != rest.charAt(i)) return IDENTIFIER;
+		}
+
+		return type;
 	}
 
 	private boolean isAlpha(char c) {
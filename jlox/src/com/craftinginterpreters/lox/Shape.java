@@ -0,0 +1,107 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of an instance's fields: which index of its field array holds
+// each name. Instances that gain the same fields in the same order share a
+// shape, so a property access site can remember the index it found for a
+// shape and skip the name lookup the next time it sees that shape.
+class Shape {
+	static final Shape EMPTY = new Shape(new HashMap<>(), false);
+
+	// Shapes are never freed, so the tree of them has to stay small. A shape
+	// that would have more than this many shapes after it, or more fields
+	// than this, is a dictionary instead: it belongs to a single instance,
+	// gains fields in place and is never shared or cached. Like V8 and
+	// Truffle, an object that grows in too many ways gives up on shapes.
+	private static final int MAX_TRANSITIONS = 8;
+	private static final int MAX_FIELDS = 64;
+
+	private final Map<String, Integer> indexes;
+	private final Map<String, Shape> transitions = new HashMap<>();
+	final boolean isDictionary;
+
+	private Shape(Map<String, Integer> indexes, boolean isDictionary) {
+		this.indexes = indexes;
+		this.isDictionary = isDictionary;
+	}
+
+	int size() {
+		return indexes.size();
+	}
+
+	int indexOf(String name) {
+		Integer index = indexes.get(name);
+		return index == null ? -1 : index;
+	}
+
+	// The shape an instance of this shape moves to when it gains a field.
+	Shape with(String name) {
+		if (isDictionary) {
+			indexes.put(name, indexes.size());
+			return this;
+		}
+
+		Shape next = transitions.get(name);
+		if (next == null) {
+			Map<String, Integer> nextIndexes = new HashMap<>(indexes);
+			nextIndexes.put(name, indexes.size());
+			if (transitions.size() == MAX_TRANSITIONS || nextIndexes.size() > MAX_FIELDS) {
+				return new Shape(nextIndexes, true);
+			}
+
+			next = new Shape(nextIndexes, false);
+			transitions.put(name, next);
+		}
+
+		return next;
+	}
+
+	// An inline cache for one Get or Set site. It remembers where the site's
+	// property lives in the last few shapes it has seen; past that the site
+	// is megamorphic and falls back to looking the name up in the shape.
+	static class Cache {
+		private static final int SIZE = 4;
+
+		private final Shape[] shapes = new Shape[SIZE];
+		private final int[] indexes = new int[SIZE];
+		// For a Set that adds the field, the shape the instance moves to.
+		private final Shape[] transitions = new Shape[SIZE];
+		private int count = 0;
+
+		// Returns -1 if instances of the shape don't have the field.
+		int indexOf(Shape shape, String name) {
+			// A dictionary changes as its instance gains fields, so what the
+			// site found in it can't be reused.
+			if (shape.isDictionary) return shape.indexOf(name);
+
+			for (int i = 0; i < count; i++) {
+				if (shapes[i] == shape) return indexes[i];
+			}
+
+			int index = shape.indexOf(name);
+			if (count < SIZE) {
+				shapes[count] = shape;
+				indexes[count] = index;
+				count++;
+			}
+			return index;
+		}
+
+		Shape with(Shape shape, String name) {
+			for (int i = 0; i < count; i++) {
+				if (shapes[i] == shape) {
+					if (transitions[i] != null) return transitions[i];
+
+					// Each instance that becomes a dictionary needs its own.
+					Shape next = shape.with(name);
+					if (!next.isDictionary) transitions[i] = next;
+					return next;
+				}
+			}
+
+			return shape.with(name);
+		}
+	}
+}
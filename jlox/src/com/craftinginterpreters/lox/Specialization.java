@@ -0,0 +1,11 @@
+package com.craftinginterpreters.lox;
+
+// What an operator node has seen its operands be. A node starts out null,
+// picks a specialization the first time it runs and drops to GENERIC for
+// good once an operand fails the specialization's guard.
+enum Specialization {
+	NUMBER,
+	STRING,
+	BOOLEAN,
+	GENERIC
+}
@@ -25,6 +25,8 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+        boolean isFlattened;
+        int frameSize;
     }
     static class Class extends Stmt {
         Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
@@ -41,6 +43,7 @@ abstract class Stmt {
         final Token name;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+        boolean isBoxed;
     }
     static class Expression extends Stmt {
         Expression(Expr expression) {
@@ -69,6 +72,13 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        boolean isMethod;
+        int calls;
+        Jit.Code compiled;
+        int frameSize;
+        Resolver.Upvalue[] upvalues;
+        boolean isBoxed;
+        boolean[] boxedParams;
     }
     static class If extends Stmt {
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -111,6 +121,7 @@ abstract class Stmt {
 
         final Token keyword;
         final Expr value;
+        boolean isTailCall;
     }
     static class Var extends Stmt {
         Var(Token name, Expr initializer) {
@@ -125,6 +136,8 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        boolean reassigned;
+        boolean isBoxed;
     }
     static class While extends Stmt {
         While(Expr condition, Stmt body) {
@@ -139,6 +152,8 @@ abstract class Stmt {
 
         final Expr condition;
         final Stmt body;
+        int iterations;
+        Jit.Loop compiled;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
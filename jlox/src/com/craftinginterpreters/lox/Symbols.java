@@ -0,0 +1,63 @@
+package com.craftinginterpreters.lox;
+
+// The names a scanner has seen. A name is looked up by where it is in the
+// source, so a String is only made the first time some name appears, and
+// every token with the same name shares it. Names in large scripts repeat a
+// lot, so scanning then allocates little besides tokens.
+class Symbols {
+	private String[] table = new String[256];
+	private int count = 0;
+
+	// The text of source from start up to end.
+	String intern(char[] source, int start, int end) {
+		// The same hash String uses, so a stored symbol's cached hash can
+		// be compared first.
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + source[i];
+		}
+
+		int length = end - start;
+		int mask = table.length - 1;
+		int index = spread(hash) & mask;
+		for (String symbol = table[index]; symbol != null; symbol = table[index]) {
+			if (symbol.hashCode() == hash && matches(symbol, source, start, length)) {
+				return symbol;
+			}
+
+			index = (index + 1) & mask;
+		}
+
+		String symbol = new String(source, start, length);
+		table[index] = symbol;
+		if (++count * 2 > table.length) grow();
+		return symbol;
+	}
+
+	private static boolean matches(String symbol, char[] source, int start, int length) {
+		if (symbol.length() != length) return false;
+
+		for (int i = 0; i < length; i++) {
+			if (symbol.charAt(i) != source[start + i]) return false;
+		}
+
+		return true;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private void grow() {
+		String[] old = table;
+		table = new String[old.length * 2];
+		int mask = table.length - 1;
+		for (String symbol : old) {
+			if (symbol == null) continue;
+
+			int index = spread(symbol.hashCode()) & mask;
+			while (table[index] != null) index = (index + 1) & mask;
+			table[index] = symbol;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// The tokens a scanner makes, kept in parallel arrays rather than as an
+// object each. The parser reads a token's parts by index and only makes a
+// Token for those the syntax tree keeps, like names and operators.
+//
+// Reading past the last token scans more. Tokens before the one the parser
+// has released are dropped when room is needed, so a stream of tokens
+// only ever holds the few the parser is between.
+class Tokens {
+	private static final TokenType[] TYPES = TokenType.values();
+
+	private final Scanner scanner;
+	private byte[] types = new byte[256];
+	private String[] lexemes = new String[256];
+	private Object[] literals = new Object[256];
+	private int[] lines = new int[256];
+	// The index of the first token held, and of the token after the last.
+	private int first = 0;
+	private int count = 0;
+	private int released = 0;
+
+	Tokens(Scanner scanner) {
+		this.scanner = scanner;
+	}
+
+	void add(TokenType type, String lexeme, Object literal, int line) {
+		if (count - first == types.length) makeRoom();
+
+		int slot = count - first;
+		types[slot] = (byte)type.ordinal();
+		lexemes[slot] = lexeme;
+		literals[slot] = literal;
+		lines[slot] = line;
+		count++;
+	}
+
+	private void makeRoom() {
+		int unused = released - first;
+		if (unused >= types.length / 2) {
+			int kept = count - released;
+			System.arraycopy(types, unused, types, 0, kept);
+			System.arraycopy(lexemes, unused, lexemes, 0, kept);
+			System.arraycopy(literals, unused, literals, 0, kept);
+			System.arraycopy(lines, unused, lines, 0, kept);
+			Arrays.fill(lexemes, kept, lexemes.length, null);
+			Arrays.fill(literals, kept, literals.length, null);
+			first = released;
+			return;
+		}
+
+		grow(types.length * 2);
+	}
+
+	private void grow(int capacity) {
+		types = Arrays.copyOf(types, capacity);
+		lexemes = Arrays.copyOf(lexemes, capacity);
+		literals = Arrays.copyOf(literals, capacity);
+		lines = Arrays.copyOf(lines, capacity);
+	}
+
+	// Adds the tokens of a chunk of the source scanned on its own, whose
+	// lines were numbered from 1 rather than after the lines before it.
+	void append(Tokens chunk, int lineOffset) {
+		int size = chunk.count;
+		int held = count - first;
+		if (held + size > types.length) {
+			grow(Math.max(types.length * 2, held + size));
+		}
+
+		System.arraycopy(chunk.types, 0, types, held, size);
+		System.arraycopy(chunk.lexemes, 0, lexemes, held, size);
+		System.arraycopy(chunk.literals, 0, literals, held, size);
+		for (int i = 0; i < size; i++) {
+			lines[held + i] = chunk.lines[i] + lineOffset;
+		}
+		count += size;
+	}
+
+	// The parser won't read tokens before index again.
+	void release(int index) {
+		released = index;
+	}
+
+	int size() {
+		return count;
+	}
+
+	TokenType type(int index) {
+		while (index >= count) scanner.scanMore();
+		return TYPES[types[index - first]];
+	}
+
+	String lexeme(int index) {
+		return lexemes[index - first];
+	}
+
+	Object literal(int index) {
+		return literals[index - first];
+	}
+
+	int line(int index) {
+		return lines[index - first];
+	}
+
+	Token get(int index) {
+		type(index);
+		int slot = index - first;
+		return new Token(TYPES[types[slot]], lexemes[slot], literals[slot], lines[slot]);
+	}
+}
@@ -0,0 +1,657 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.Chunk.*;
+
+// Runs chunks produced by BytecodeCompiler. Mirrors clox's vm.c: a single
+// value stack shared by every call frame, upvalues that point into the stack
+// while the variable is live and are closed over when it goes out of scope,
+// and copy-down method inheritance. Globals and natives are shared with the
+// Interpreter. Unlike clox, a call in return position replaces the frame
+// that made it, as it does in the other engines.
+class VM {
+	static final class ObjFunction {
+		final String name;
+		int arity = 0;
+		int upvalueCount = 0;
+		final Chunk chunk = new Chunk();
+
+		ObjFunction(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			if (name == null) return "<script>";
+			return "<fn " + name + ">";
+		}
+	}
+
+	static final class ObjUpvalue {
+		// Stack slot of the captured variable while it is open, -1 once closed.
+		int location;
+		Object closed = null;
+		ObjUpvalue next = null;
+
+		ObjUpvalue(int location) {
+			this.location = location;
+		}
+	}
+
+	static final class ObjClosure {
+		final ObjFunction function;
+		final ObjUpvalue[] upvalues;
+
+		ObjClosure(ObjFunction function) {
+			this.function = function;
+			this.upvalues = new ObjUpvalue[function.upvalueCount];
+		}
+
+		@Override
+		public String toString() {
+			return function.toString();
+		}
+	}
+
+	static final class ObjClass {
+		final String name;
+		final Map<String, ObjClosure> methods = new HashMap<>();
+		ObjClosure initializer = null;
+
+		ObjClass(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	static final class ObjInstance {
+		final ObjClass klass;
+		final Map<String, Object> fields = new HashMap<>();
+
+		ObjInstance(ObjClass klass) {
+			this.klass = klass;
+		}
+
+		@Override
+		public String toString() {
+			return klass.name + " instance";
+		}
+	}
+
+	static final class ObjBoundMethod {
+		final Object receiver;
+		final ObjClosure method;
+
+		ObjBoundMethod(Object receiver, ObjClosure method) {
+			this.receiver = receiver;
+			this.method = method;
+		}
+
+		@Override
+		public String toString() {
+			return method.toString();
+		}
+	}
+
+	private static final class CallFrame {
+		ObjClosure closure;
+		int ip;
+		int slots;
+	}
+
+	private static final int FRAMES_MAX = 1 << 16;
+
+	private final Interpreter interpreter;
+	private final Environment globals;
+	private Object[] stack = new Object[256];
+	private int stackTop = 0;
+	private CallFrame[] frames = new CallFrame[64];
+	private int frameCount = 0;
+	private ObjUpvalue openUpvalues = null;
+
+	VM(Interpreter interpreter) {
+		this.interpreter = interpreter;
+		this.globals = interpreter.globals;
+	}
+
+	void interpret(ObjFunction script) {
+		ObjClosure closure = new ObjClosure(script);
+		push(closure);
+
+		try {
+			call(closure, 0);
+			run();
+		} catch (RuntimeError error) {
+			Lox.runtimeError(error);
+			resetStack();
+		}
+	}
+
+	private void resetStack() {
+		Arrays.fill(stack, 0, stackTop, null);
+		stackTop = 0;
+		frameCount = 0;
+		openUpvalues = null;
+	}
+
+	private void run() {
+		CallFrame frame = frames[frameCount - 1];
+		byte[] code = frame.closure.function.chunk.code;
+		Object[] constants = frame.closure.function.chunk.constants;
+		int base = frame.slots;
+		int ip = frame.ip;
+
+		for (;;) {
+			switch (code[ip++]) {
+				case OP_CONSTANT:
+					push(constants[readShort(code, ip)]);
+					ip += 2;
+					break;
+				case OP_NIL: push(null); break;
+				case OP_TRUE: push(true); break;
+				case OP_FALSE: push(false); break;
+				case OP_POP: stack[--stackTop] = null; break;
+
+				case OP_GET_LOCAL:
+					push(stack[base + (code[ip++] & 0xff)]);
+					break;
+				case OP_SET_LOCAL:
+					stack[base + (code[ip++] & 0xff)] = stack[stackTop - 1];
+					break;
+
+				case OP_GET_GLOBAL: {
+					int index = readShort(code, ip);
+					Token name = (Token)constants[readShort(code, ip + 2)];
+					ip += 4;
+					try {
+						push(globals.getGlobal(index, name));
+					} catch (RuntimeError error) {
+						throw error(frame, ip, error.getMessage());
+					}
+					break;
+				}
+				case OP_DEFINE_GLOBAL:
+					globals.defineGlobal(readShort(code, ip), pop());
+					ip += 2;
+					break;
+				case OP_SET_GLOBAL: {
+					int index = readShort(code, ip);
+					Token name = (Token)constants[readShort(code, ip + 2)];
+					ip += 4;
+					try {
+						globals.assignGlobal(index, name, stack[stackTop - 1]);
+					} catch (RuntimeError error) {
+						throw error(frame, ip, error.getMessage());
+					}
+					break;
+				}
+
+				case OP_GET_UPVALUE: {
+					ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+					push(upvalue.location >= 0 ? stack[upvalue.location] : upvalue.closed);
+					break;
+				}
+				case OP_SET_UPVALUE: {
+					ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+					if (upvalue.location >= 0) {
+						stack[upvalue.location] = stack[stackTop - 1];
+					} else {
+						upvalue.closed = stack[stackTop - 1];
+					}
+					break;
+				}
+
+				case OP_GET_PROPERTY: {
+					String name = (String)constants[readShort(code, ip)];
+					ip += 2;
+
+					if (!(stack[stackTop - 1] instanceof ObjInstance)) {
+						throw error(frame, ip, "Only instances have properties.");
+					}
+
+					ObjInstance instance = (ObjInstance)stack[stackTop - 1];
+					Object value = instance.fields.get(name);
+					if (value != null || instance.fields.containsKey(name)) {
+						stack[stackTop - 1] = value;
+						break;
+					}
+
+					ObjClosure method = instance.klass.methods.get(name);
+					if (method == null) {
+						throw error(frame, ip, "Undefined property '" + name + "'.");
+					}
+					stack[stackTop - 1] = new ObjBoundMethod(instance, method);
+					break;
+				}
+				case OP_SET_PROPERTY: {
+					String name = (String)constants[readShort(code, ip)];
+					ip += 2;
+
+					if (!(stack[stackTop - 2] instanceof ObjInstance)) {
+						throw error(frame, ip, "Only instances have fields.");
+					}
+
+					ObjInstance instance = (ObjInstance)stack[stackTop - 2];
+					Object value = pop();
+					instance.fields.put(name, value);
+					stack[stackTop - 1] = value;
+					break;
+				}
+				case OP_GET_SUPER: {
+					String name = (String)constants[readShort(code, ip)];
+					ip += 2;
+
+					ObjClass superclass = (ObjClass)pop();
+					ObjClosure method = superclass.methods.get(name);
+					if (method == null) {
+						throw error(frame, ip, "Undefined property '" + name + "'.");
+					}
+					stack[stackTop - 1] = new ObjBoundMethod(stack[stackTop - 1], method);
+					break;
+				}
+				case OP_GET_METHOD: {
+					String name = (String)constants[readShort(code, ip)];
+					ip += 2;
+
+					if (!(stack[stackTop - 1] instanceof ObjInstance)) {
+						throw error(frame, ip, "Only instances have properties.");
+					}
+
+					ObjInstance instance = (ObjInstance)stack[stackTop - 1];
+					Object value = instance.fields.get(name);
+					if (value != null || instance.fields.containsKey(name)) {
+						stack[stackTop - 1] = value;
+						push(null);
+						break;
+					}
+
+					ObjClosure method = instance.klass.methods.get(name);
+					if (method == null) {
+						throw error(frame, ip, "Undefined property '" + name + "'.");
+					}
+					push(method);
+					break;
+				}
+				case OP_GET_SUPER_METHOD: {
+					String name = (String)constants[readShort(code, ip)];
+					ip += 2;
+
+					ObjClass superclass = (ObjClass)stack[stackTop - 1];
+					ObjClosure method = superclass.methods.get(name);
+					if (method == null) {
+						throw error(frame, ip, "Undefined property '" + name + "'.");
+					}
+					stack[stackTop - 1] = method;
+					break;
+				}
+
+				case OP_EQUAL: {
+					Object b = pop();
+					stack[stackTop - 1] = Interpreter.isEqual(stack[stackTop - 1], b);
+					break;
+				}
+				case OP_GREATER: {
+					checkNumberOperands(frame, ip);
+					double b = (double)pop();
+					stack[stackTop - 1] = (double)stack[stackTop - 1] > b;
+					break;
+				}
+				case OP_GREATER_EQUAL: {
+					checkNumberOperands(frame, ip);
+					double b = (double)pop();
+					stack[stackTop - 1] = (double)stack[stackTop - 1] >= b;
+					break;
+				}
+				case OP_LESS: {
+					checkNumberOperands(frame, ip);
+					double b = (double)pop();
+					stack[stackTop - 1] = (double)stack[stackTop - 1] < b;
+					break;
+				}
+				case OP_LESS_EQUAL: {
+					checkNumberOperands(frame, ip);
+					double b = (double)pop();
+					stack[stackTop - 1] = (double)stack[stackTop - 1] <= b;
+					break;
+				}
+
+				case OP_ADD: {
+					Object b = stack[stackTop - 1];
+					Object a = stack[stackTop - 2];
+					if (a instanceof Double && b instanceof Double) {
+						stackTop--;
+						stack[stackTop - 1] = (double)a + (double)b;
+					} else if (Interpreter.isString(a) || Interpreter.isString(b)) {
+						stackTop--;
+						stack[stackTop - 1] = interpreter.concatenate(a, b);
+					} else {
+						throw error(frame, ip, "Operands must be two numbers or two strings.");
+					}
+					stack[stackTop] = null;
+					break;
+				}
+				case OP_SUBTRACT: {
+					checkNumberOperands(frame, ip);
+					double b = (double)pop();
+					stack[stackTop - 1] = (double)stack[stackTop - 1] - b;
+					break;
+				}
+				case OP_MULTIPLY: {
+					checkNumberOperands(frame, ip);
+					double b = (double)pop();
+					stack[stackTop - 1] = (double)stack[stackTop - 1] * b;
+					break;
+				}
+				case OP_DIVIDE: {
+					checkNumberOperands(frame, ip);
+					if ((double)stack[stackTop - 1] == 0) {
+						throw error(frame, ip, "Cannot divide by zero.");
+					}
+					double b = (double)pop();
+					stack[stackTop - 1] = (double)stack[stackTop - 1] / b;
+					break;
+				}
+				case OP_NOT:
+					stack[stackTop - 1] = !Interpreter.isTruthy(stack[stackTop - 1]);
+					break;
+				case OP_NEGATE:
+					if (!(stack[stackTop - 1] instanceof Double)) {
+						throw error(frame, ip, "Operand must be a number.");
+					}
+					stack[stackTop - 1] = -(double)stack[stackTop - 1];
+					break;
+
+				case OP_PRINT:
+					interpreter.print(pop());
+					break;
+
+				case OP_JUMP:
+					ip += 2 + readShort(code, ip);
+					break;
+				case OP_JUMP_IF_FALSE:
+					if (Interpreter.isTruthy(stack[stackTop - 1])) {
+						ip += 2;
+					} else {
+						ip += 2 + readShort(code, ip);
+					}
+					break;
+				case OP_LOOP:
+					ip -= readShort(code, ip) - 2;
+					break;
+
+				case OP_CALL:
+				case OP_TAIL_CALL: {
+					boolean isTail = code[ip - 1] == OP_TAIL_CALL;
+					int argCount = code[ip++] & 0xff;
+					frame.ip = ip;
+					callValue(stack[stackTop - 1 - argCount], argCount);
+					if (isTail && frames[frameCount - 1] != frame) replaceCaller();
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					base = frame.slots;
+					ip = frame.ip;
+					break;
+				}
+				case OP_INVOKE:
+				case OP_TAIL_INVOKE: {
+					boolean isTail = code[ip - 1] == OP_TAIL_INVOKE;
+					int argCount = code[ip++] & 0xff;
+					frame.ip = ip;
+					invoke(argCount);
+					if (isTail && frames[frameCount - 1] != frame) replaceCaller();
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					base = frame.slots;
+					ip = frame.ip;
+					break;
+				}
+
+				case OP_CLOSURE: {
+					ObjFunction function = (ObjFunction)constants[readShort(code, ip)];
+					ip += 2;
+					ObjClosure closure = new ObjClosure(function);
+					push(closure);
+
+					for (int i = 0; i < closure.upvalues.length; i++) {
+						boolean isLocal = code[ip++] == 1;
+						int index = code[ip++] & 0xff;
+						if (isLocal) {
+							closure.upvalues[i] = captureUpvalue(base + index);
+						} else {
+							closure.upvalues[i] = frame.closure.upvalues[index];
+						}
+					}
+					break;
+				}
+				case OP_CLOSE_UPVALUE:
+					closeUpvalues(stackTop - 1);
+					pop();
+					break;
+
+				case OP_RETURN: {
+					Object result = pop();
+					closeUpvalues(base);
+					frameCount--;
+					if (frameCount == 0) {
+						pop();
+						return;
+					}
+
+					Arrays.fill(stack, base, stackTop, null);
+					stackTop = base;
+					push(result);
+
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					base = frame.slots;
+					ip = frame.ip;
+					break;
+				}
+
+				case OP_CLASS:
+					push(new ObjClass((String)constants[readShort(code, ip)]));
+					ip += 2;
+					break;
+				case OP_INHERIT: {
+					if (!(stack[stackTop - 2] instanceof ObjClass)) {
+						throw error(frame, ip, "Superclass must be a class.");
+					}
+
+					ObjClass superclass = (ObjClass)stack[stackTop - 2];
+					ObjClass subclass = (ObjClass)pop();
+					subclass.methods.putAll(superclass.methods);
+					subclass.initializer = superclass.initializer;
+					break;
+				}
+				case OP_METHOD: {
+					String name = (String)constants[readShort(code, ip)];
+					ip += 2;
+
+					ObjClosure method = (ObjClosure)pop();
+					ObjClass klass = (ObjClass)stack[stackTop - 1];
+					klass.methods.put(name, method);
+					if (name.equals("init")) klass.initializer = method;
+					break;
+				}
+			}
+		}
+	}
+
+	private void callValue(Object callee, int argCount) {
+		if (callee instanceof ObjClosure) {
+			call((ObjClosure)callee, argCount);
+			return;
+		}
+
+		if (callee instanceof ObjBoundMethod) {
+			ObjBoundMethod bound = (ObjBoundMethod)callee;
+			stack[stackTop - argCount - 1] = bound.receiver;
+			call(bound.method, argCount);
+			return;
+		}
+
+		if (callee instanceof ObjClass) {
+			ObjClass klass = (ObjClass)callee;
+			stack[stackTop - argCount - 1] = new ObjInstance(klass);
+			if (klass.initializer != null) {
+				call(klass.initializer, argCount);
+			} else if (argCount != 0) {
+				throw callError("Expected 0 arguments but got " + argCount + ".");
+			}
+			return;
+		}
+
+		if (callee instanceof LoxCallable) {
+			LoxCallable function = (LoxCallable)callee;
+			if (argCount != function.arity()) {
+				throw callError("Expected " + function.arity() +
+						" arguments but got " + argCount + ".");
+			}
+
+			Object[] arguments = Arrays.copyOfRange(stack, stackTop - argCount, stackTop);
+			Object result;
+			try {
+				result = function.call(interpreter, arguments);
+			} catch (RuntimeError error) {
+				throw callError(error.getMessage());
+			}
+			Arrays.fill(stack, stackTop - argCount - 1, stackTop, null);
+			stackTop -= argCount + 1;
+			push(result);
+			return;
+		}
+
+		throw callError("Can only call functions and classes.");
+	}
+
+	private void call(ObjClosure closure, int argCount) {
+		if (argCount != closure.function.arity) {
+			throw callError("Expected " + closure.function.arity +
+					" arguments but got " + argCount + ".");
+		}
+
+		if (frameCount == FRAMES_MAX) {
+			throw callError("Stack overflow.");
+		}
+
+		if (frameCount == frames.length) {
+			frames = Arrays.copyOf(frames, frameCount * 2);
+		}
+		if (frames[frameCount] == null) frames[frameCount] = new CallFrame();
+
+		CallFrame frame = frames[frameCount++];
+		frame.closure = closure;
+		frame.ip = 0;
+		frame.slots = stackTop - argCount - 1;
+	}
+
+	// Moves the frame a tail call just pushed down over the frame that made
+	// the call, which has nothing left to do but return what it returns.
+	private void replaceCaller() {
+		CallFrame callee = frames[frameCount - 1];
+		CallFrame caller = frames[frameCount - 2];
+		closeUpvalues(caller.slots);
+
+		int size = stackTop - callee.slots;
+		System.arraycopy(stack, callee.slots, stack, caller.slots, size);
+		int top = caller.slots + size;
+		Arrays.fill(stack, top, stackTop, null);
+		stackTop = top;
+
+		caller.closure = callee.closure;
+		caller.ip = callee.ip;
+		frameCount--;
+	}
+
+	// Calls the method OP_GET_METHOD or OP_GET_SUPER_METHOD left between the
+	// receiver and the arguments, after dropping it from the stack.
+	private void invoke(int argCount) {
+		int slot = stackTop - argCount - 1;
+		Object method = stack[slot];
+		System.arraycopy(stack, slot + 1, stack, slot, argCount);
+		stack[--stackTop] = null;
+
+		if (method == null) {
+			callValue(stack[slot - 1], argCount);
+		} else {
+			call((ObjClosure)method, argCount);
+		}
+	}
+
+	private ObjUpvalue captureUpvalue(int local) {
+		ObjUpvalue previous = null;
+		ObjUpvalue upvalue = openUpvalues;
+		while (upvalue != null && upvalue.location > local) {
+			previous = upvalue;
+			upvalue = upvalue.next;
+		}
+
+		if (upvalue != null && upvalue.location == local) return upvalue;
+
+		ObjUpvalue created = new ObjUpvalue(local);
+		created.next = upvalue;
+
+		if (previous == null) {
+			openUpvalues = created;
+		} else {
+			previous.next = created;
+		}
+
+		return created;
+	}
+
+	private void closeUpvalues(int last) {
+		while (openUpvalues != null && openUpvalues.location >= last) {
+			ObjUpvalue upvalue = openUpvalues;
+			upvalue.closed = stack[upvalue.location];
+			upvalue.location = -1;
+			openUpvalues = upvalue.next;
+		}
+	}
+
+	private void push(Object value) {
+		if (stackTop == stack.length) {
+			stack = Arrays.copyOf(stack, stackTop * 2);
+		}
+		stack[stackTop++] = value;
+	}
+
+	private Object pop() {
+		Object value = stack[--stackTop];
+		stack[stackTop] = null;
+		return value;
+	}
+
+	private static int readShort(byte[] code, int ip) {
+		return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+	}
+
+	private void checkNumberOperands(CallFrame frame, int ip) {
+		if (stack[stackTop - 1] instanceof Double && stack[stackTop - 2] instanceof Double) return;
+
+		throw error(frame, ip, "Operands must be numbers.");
+	}
+
+	// Errors raised while setting up a call report the line of the calling
+	// instruction, whose ip the run loop saved before calling out.
+	private RuntimeError callError(String message) {
+		CallFrame frame = frames[frameCount - 1];
+		return error(frame, frame.ip, message);
+	}
+
+	private RuntimeError error(CallFrame frame, int ip, String message) {
+		int line = frame.closure.function.chunk.lines[ip - 1];
+		return new RuntimeError(new Token(TokenType.EOF, "", null, line), message);
+	}
+}
@@ -13,31 +13,31 @@ public class GenerateAst {
 		}
 		String outputDir = args[0];
 		defineAst(outputDir, "Expr", Arrays.asList(
-			"Binary			: Expr left, Token operator, Expr right",
-			"Call			: Expr callee, Token paren, List<Expr> arguments",
-			"Get			: Expr object, Token name",
+			"Binary			: Expr left, Token operator, Expr right | Specialization specialization",
+			"Call			: Expr callee, Token paren, List<Expr> arguments | Native intrinsic",
+			"Get			: Expr object, Token name | Shape.Cache cache = new Shape.Cache()",
 			"Grouping		: Expr expression",
 			"Literal		: Object value",
-			"Logical		: Expr left, Token operator, Expr right",
-			"Set			: Expr object, Token name, Expr value",
-			"Super			: Token keyword, Token method",
-			"This			: Token keyword",
-			"Unary			: Token operator, Expr right",
+			"Logical		: Expr left, Token operator, Expr right | Specialization specialization",
+			"Set			: Expr object, Token name, Expr value | Shape.Cache cache = new Shape.Cache()",
+			"Super			: Token keyword, Token method | Resolver.Slot slot, Resolver.Slot thisSlot",
+			"This			: Token keyword | Resolver.Slot slot",
+			"Unary			: Token operator, Expr right | Specialization specialization",
 			"Conditional	: Expr condition, Expr thenBranch, Expr elseBranch",
-			"Variable		: Token name",
-			"Assign			: Token name, Expr value"
+			"Variable		: Token name | Resolver.Slot slot, int global",
+			"Assign			: Token name, Expr value | Resolver.Slot slot, int global"
 		));
 
 		defineAst(outputDir, "Stmt", Arrays.asList(
-			"Block		: List<Stmt> statements",
-			"Class		: Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+			"Block		: List<Stmt> statements | boolean isFlattened, int frameSize",
+			"Class		: Token name, Expr.Variable superclass, List<Stmt.Function> methods | boolean isBoxed",
 			"Expression	: Expr expression",
-			"Function	: Token name, List<Token> params, List<Stmt> body",
+			"Function	: Token name, List<Token> params, List<Stmt> body | boolean isMethod, int calls, Jit.Code compiled, int frameSize, Resolver.Upvalue[] upvalues, boolean isBoxed, boolean[] boxedParams",
 			"If			: Expr condition, Stmt thenBranch, Stmt elseBranch",
 			"Print		: Expr expression",
-			"Return		: Token keyword, Expr value",
-			"Var		: Token name, Expr initializer",
-			"While		: Expr condition, Stmt body"
+			"Return		: Token keyword, Expr value | boolean isTailCall",
+			"Var		: Token name, Expr initializer | boolean reassigned, boolean isBoxed",
+			"While		: Expr condition, Stmt body | int iterations, Jit.Loop compiled"
 		));
 	}
 
@@ -70,10 +70,19 @@ public class GenerateAst {
 		writer.close();
 	}
 
+	// Fields after a "|" are not constructor parameters; they are mutable
+	// slots the later passes fill in on the node.
 	private static void defineType(PrintWriter writer,
 									String baseName,
 									String className,
-									String fieldList) {
+									String fieldSpec) {
+		String fieldList = fieldSpec;
+		String[] mutableFields = new String[0];
+		if (fieldSpec.contains("|")) {
+			fieldList = fieldSpec.split("\\|")[0].trim();
+			mutableFields = fieldSpec.split("\\|")[1].trim().split(", ");
+		}
+
 		writer.println("    static class " + className + " extends " + baseName + " {");
 
 		// Constructor
@@ -100,6 +109,9 @@ public class GenerateAst {
 		for (String field : fields) {
 			writer.println("        final " + field + ";");
 		}
+		for (String field : mutableFields) {
+			writer.println("        " + field + ";");
+		}
 
 		writer.println("    }");
 	}